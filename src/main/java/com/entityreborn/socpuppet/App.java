@@ -30,15 +30,22 @@ import com.entityreborn.socpuppet.config.BotConfig;
 import com.entityreborn.socpuppet.config.ConnectionConfig;
 import com.entityreborn.socpuppet.console.ConsoleManager;
 import com.entityreborn.socpuppet.extensions.ExtensionManager;
+import com.entityreborn.socpuppet.extensions.TriggerDispatcher;
 import com.entityreborn.socpuppet.users.SocPuppetUser;
+import com.entityreborn.socpuppet.users.UserManager;
+import com.entityreborn.socpuppet.util.Password;
+import com.entityreborn.socpuppet.util.PasswordExecutor;
 import com.entityreborn.socpuppet.util.ShutdownMonitorThread;
+import com.entityreborn.socpuppet.util.SqliteConnectionSource;
 import com.laytonsmith.PureUtilities.ClassLoading.ClassDiscovery;
 import com.laytonsmith.PureUtilities.ClassLoading.ClassDiscoveryCache;
 import java.io.File;
-import java.io.IOException;
 import java.net.URL;
+import java.security.NoSuchAlgorithmException;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
  *
@@ -58,6 +65,8 @@ public class App {
     static String VERSION = "";
     private static final ConsoleManager consoleManager = ConsoleManager.getInstance();
     private static final Map<String, SocPuppet> bots = new HashMap<>();
+    private static TriggerDispatcher dispatcher;
+    private static ConnectionSupervisor supervisor;
     
     static {
         Package p = App.class.getPackage();
@@ -86,14 +95,36 @@ public class App {
         return bots;
     }
     
+    public static TriggerDispatcher getDispatcher() {
+        return dispatcher;
+    }
+    
+    public static ConnectionSupervisor getSupervisor() {
+        return supervisor;
+    }
+    
     public static void shutdown() {
         System.out.println("Shutting down bots...");
+        if (supervisor != null) {
+            supervisor.shutdown();
+        }
+        
         for (SocPuppet bot : bots.values()) {
             bot.quit();
         }
         
         bots.clear();
         
+        if (dispatcher != null) {
+            dispatcher.shutdown();
+        }
+        
+        PasswordExecutor.get().shutdown();
+        
+        // Triggers are done; write out anything they queued.
+        UserManager.shutdown();
+        SqliteConnectionSource.closeAll();
+        
         ShutdownMonitorThread shutdown = new ShutdownMonitorThread(new Runnable() {
             @Override
             public void run() {
@@ -116,6 +147,8 @@ public class App {
         extcache.mkdirs();
         
         URL thisurl = ClassDiscovery.GetClassContainer(App.class);
+        ClassDiscovery.setDefaultParallelism(c.getInt("discovery", "parallelism", 0));
+        
         ExtensionManager em = ExtensionManager.Get();
         
         for (File dir : c.getDirectories("plugins")) {
@@ -141,6 +174,31 @@ public class App {
         em.initialize(extcache, cd);
         em.startup();
         
+        UserManager.setWriteBehind(c.getInt("users", "flushinterval", 5000),
+                c.getInt("users", "flushbatch", 100));
+        UserManager.setDirectoryMode(c.getBoolean("users", "directory", false));
+        
+        try {
+            Password.configure(c.getString("passwords", "algorithm", Password.getAlgorithm()),
+                    c.getInt("passwords", "iterations", Password.getIterations()));
+        } catch (NoSuchAlgorithmException ex) {
+            Logger.getLogger(App.class.getName()).log(Level.SEVERE,
+                    "Unknown password algorithm, keeping " + Password.getAlgorithm(), ex);
+        }
+        
+        PasswordExecutor.configure(c.getInt("passwords", "threads", 2),
+                c.getInt("passwords", "queue", 32),
+                c.getInt("passwords", "attempts", 5),
+                c.getInt("passwords", "window", 60000));
+        
+        dispatcher = new TriggerDispatcher(c.getInt("dispatch", "workers", 4),
+                c.getInt("dispatch", "backlog", 16),
+                c.getInt("dispatch", "capacity", 256));
+        
+        supervisor = new ConnectionSupervisor(c.getInt("connect", "handshakes", 4),
+                c.getInt("connect", "backoff", 1000),
+                c.getInt("connect", "maxbackoff", 300000));
+        
         UserFactory factory = new SocPuppetUser.Factory();
         
         for (String connname : c.getConnectionNames()) {
@@ -150,37 +208,22 @@ public class App {
                 continue;
             }
             
-            final SocPuppet bot = new SocPuppet(conn, connname);
+            SocPuppet bot = new SocPuppet(conn, connname);
             bots.put(connname, bot);
             
             bot.setUserFactory(factory);
-            EventManager.registerEvents(new BuiltinListener(c), bot);
+            EventManager.registerEvents(new BuiltinListener(c, dispatcher), bot);
             
             String nickname = conn.getNickname();
             bot.setNickname(nickname);
-            
-            final String server = conn.getServer();
-            final int port = conn.getPort();
-            final String password = conn.getPassword();
-            
-            Thread t = new Thread() {
-                @Override
-                public void run() {
-                    boolean success = false;
-                    
-                    while (!success) {
-                        try {
-                            bot.connect(server, port, password);
-                            success = true;
-                        } catch (IOException ex) {
-                            System.out.println("Retrying connection. " + ex.getLocalizedMessage());
-                        }
-                    }
-                }
-            };
-            
-            t.setName(connname + "-connector");
-            t.start();
+        }
+        
+        // Open user databases up front, rather than on each connection's
+        // first message.
+        UserManager.openAll(bots.values());
+        
+        for (Map.Entry<String, SocPuppet> entry : bots.entrySet()) {
+            supervisor.connect(entry.getKey(), entry.getValue());
         }
     }
 }
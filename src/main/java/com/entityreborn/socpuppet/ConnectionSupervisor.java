@@ -0,0 +1,345 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Jason Unger <entityreborn@gmail.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.entityreborn.socpuppet;
+
+import com.entityreborn.socbot.events.DisconnectedEvent;
+import com.entityreborn.socbot.eventsystem.EventHandler;
+import com.entityreborn.socbot.eventsystem.EventManager;
+import com.entityreborn.socbot.eventsystem.Listener;
+import com.entityreborn.socpuppet.config.ConnectionConfig;
+import java.lang.reflect.Method;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Connects bots to their servers, retrying with exponential backoff. Each
+ * attempt runs on its own short-lived thread (a virtual thread when the JVM
+ * has them), and waiting between attempts is done on a shared timer rather
+ * than by a sleeping thread. Only a limited number of connections may be
+ * handshaking at once. A bot that loses its connection is reconnected the
+ * same way.
+ *
+ * @author Jason Unger <entityreborn@gmail.com>
+ */
+public class ConnectionSupervisor {
+    public static enum State {
+        IDLE,
+        CONNECTING,
+        BACKOFF,
+        CONNECTED,
+        STOPPED
+    }
+
+    private class Supervised implements Runnable {
+        final String name;
+        final SocPuppet bot;
+        // State changes are made while holding this object's lock.
+        volatile State state = State.IDLE;
+        volatile int failures = 0;
+        // Set if the connection dropped before connect returned.
+        boolean dropped = false;
+        long connectedAt;
+
+        Supervised(String name, SocPuppet bot) {
+            this.name = name;
+            this.bot = bot;
+        }
+
+        @Override
+        public void run() {
+            synchronized (this) {
+                if (stopped) {
+                    state = State.STOPPED;
+                    return;
+                }
+
+                state = State.CONNECTING;
+                dropped = false;
+            }
+
+            ConnectionConfig conn = bot.getConfig();
+
+            try {
+                handshakes.acquire();
+            } catch (InterruptedException ex) {
+                synchronized (this) {
+                    state = State.STOPPED;
+                }
+
+                return;
+            }
+
+            try {
+                bot.connect(conn.getServer(), conn.getPort(), conn.getPassword());
+
+                synchronized (this) {
+                    if (dropped) {
+                        backoff(this, "Dropped while connecting, retrying", null);
+                    } else {
+                        // Failures are only forgotten once this has stayed
+                        // up a while; see reconnect.
+                        state = State.CONNECTED;
+                        connectedAt = System.currentTimeMillis();
+                    }
+                }
+            } catch (Exception ex) {
+                synchronized (this) {
+                    backoff(this, "Retrying connection", ex.getLocalizedMessage());
+                }
+            } finally {
+                handshakes.release();
+            }
+        }
+    }
+
+    private class DisconnectListener implements Listener {
+        @EventHandler
+        public void handleDisconnected(DisconnectedEvent event) {
+            reconnect(event.getBot().getID());
+        }
+    }
+
+    private final Map<String, Supervised> connections = new ConcurrentHashMap<>();
+    private final Semaphore handshakes;
+    private final long baseDelay;
+    private final long maxDelay;
+    private final Random random = new Random();
+    private final ThreadFactory threads;
+    private final ScheduledExecutorService timer;
+    private volatile boolean stopped = false;
+    // How long a connection must stay up before its earlier failures are
+    // forgotten, so a server that accepts and then drops us right away
+    // still backs off.
+    private static final long STABLE_MILLIS = 60000;
+
+    /**
+     * @param maxHandshakes how many connections may be connecting at once.
+     * @param baseDelay first retry delay, in milliseconds.
+     * @param maxDelay longest retry delay, in milliseconds.
+     */
+    public ConnectionSupervisor(int maxHandshakes, long baseDelay, long maxDelay) {
+        this.handshakes = new Semaphore(Math.max(1, maxHandshakes), true);
+        this.baseDelay = Math.max(1, baseDelay);
+        this.maxDelay = Math.max(this.baseDelay, maxDelay);
+        this.threads = createThreadFactory();
+        this.timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "connection-supervisor");
+                t.setDaemon(true);
+
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Use virtual threads if this JVM has them, otherwise plain daemon
+     * threads. Looked up reflectively, as we still target older JVMs.
+     */
+    private static ThreadFactory createThreadFactory() {
+        try {
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderClass.getMethod("name", String.class, long.class)
+                    .invoke(builder, "connector-", 0L);
+            Method factory = builderClass.getMethod("factory");
+
+            return (ThreadFactory) factory.invoke(builder);
+        } catch (ReflectiveOperationException | RuntimeException ex) {
+            // No virtual threads here.
+        }
+
+        final AtomicInteger count = new AtomicInteger();
+
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "connector-" + count.getAndIncrement());
+                t.setDaemon(true);
+
+                return t;
+            }
+        };
+    }
+
+    private long nextDelay(int failures) {
+        long delay = baseDelay << Math.min(failures - 1, 30);
+
+        if (delay <= 0 || delay > maxDelay) {
+            delay = maxDelay;
+        }
+
+        // Full jitter over the upper half, so bots that dropped together
+        // don't all come back at once.
+        return delay / 2 + (long) (random.nextDouble() * (delay / 2));
+    }
+
+    private void backoff(Supervised conn, String what, String reason) {
+        conn.failures++;
+        long delay = nextDelay(conn.failures);
+        System.out.println("[" + conn.name + "] " + what + " in " + delay
+                + "ms." + (reason == null ? "" : " " + reason));
+
+        conn.state = State.BACKOFF;
+        schedule(conn, delay);
+    }
+
+    private void schedule(final Supervised conn, long delay) {
+        if (stopped) {
+            conn.state = State.STOPPED;
+            return;
+        }
+
+        timer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                start(conn);
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void start(Supervised conn) {
+        if (stopped) {
+            synchronized (conn) {
+                conn.state = State.STOPPED;
+            }
+
+            return;
+        }
+
+        threads.newThread(conn).start();
+    }
+
+    /**
+     * Start connecting the given bot, and reconnect it whenever it is
+     * disconnected.
+     *
+     * @param name
+     * @param bot
+     */
+    public void connect(String name, SocPuppet bot) {
+        Supervised conn = new Supervised(name, bot);
+        connections.put(name.toLowerCase(), conn);
+        EventManager.registerEvents(new DisconnectListener(), bot);
+
+        start(conn);
+    }
+
+    /**
+     * Connect a bot again after backing off, such as after it was
+     * disconnected. Does nothing if the bot is already being connected.
+     *
+     * @param name
+     */
+    public void reconnect(String name) {
+        Supervised conn = connections.get(name.toLowerCase());
+
+        if (conn == null) {
+            Logger.getLogger(ConnectionSupervisor.class.getName()).log(
+                    Level.WARNING, "No connection named " + name);
+            return;
+        }
+
+        synchronized (conn) {
+            if (stopped) {
+                conn.state = State.STOPPED;
+                return;
+            }
+
+            if (conn.state == State.CONNECTING) {
+                // Retried once connect returns.
+                conn.dropped = true;
+                return;
+            }
+
+            if (conn.state == State.BACKOFF) {
+                return;
+            }
+
+            if (conn.state == State.CONNECTED
+                    && System.currentTimeMillis() - conn.connectedAt >= STABLE_MILLIS) {
+                conn.failures = 0;
+            }
+
+            backoff(conn, "Reconnecting", null);
+        }
+    }
+
+    /**
+     * @param name
+     * @return the connection's state, or null if there is no such
+     * connection.
+     */
+    public State getState(String name) {
+        Supervised conn = connections.get(name.toLowerCase());
+
+        return conn == null ? null : conn.state;
+    }
+
+    /**
+     * @param name
+     * @return how many attempts in a row have failed for the connection.
+     */
+    public int getFailures(String name) {
+        Supervised conn = connections.get(name.toLowerCase());
+
+        return conn == null ? 0 : conn.failures;
+    }
+
+    public Map<String, State> getStates() {
+        Map<String, State> states = new HashMap<>();
+
+        for (Supervised conn : connections.values()) {
+            states.put(conn.name, conn.state);
+        }
+
+        return Collections.unmodifiableMap(states);
+    }
+
+    public void shutdown() {
+        stopped = true;
+        timer.shutdownNow();
+
+        for (Supervised conn : connections.values()) {
+            synchronized (conn) {
+                if (conn.state != State.CONNECTED) {
+                    conn.state = State.STOPPED;
+                }
+            }
+        }
+    }
+}
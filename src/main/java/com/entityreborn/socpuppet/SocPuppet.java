@@ -26,6 +26,7 @@ package com.entityreborn.socpuppet;
 
 import com.entityreborn.socbot.SocBot;
 import com.entityreborn.socpuppet.config.ConnectionConfig;
+import com.entityreborn.socpuppet.util.CommandScanner;
 
 /**
  *
@@ -33,13 +34,19 @@ import com.entityreborn.socpuppet.config.ConnectionConfig;
  */
 public class SocPuppet extends SocBot {
     private final ConnectionConfig config;
+    private final CommandScanner scanner;
 
     public SocPuppet(ConnectionConfig conf, String identifier) {
         super(identifier);
         config = conf;
+        scanner = new CommandScanner(conf.getCommandPrefix());
     }
 
     public ConnectionConfig getConfig() {
         return config;
     }
+
+    public CommandScanner getCommandScanner() {
+        return scanner;
+    }
 }
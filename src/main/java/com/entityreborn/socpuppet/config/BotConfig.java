@@ -103,6 +103,78 @@ public class BotConfig {
         return new File(dir);
     }
     
+    /**
+     * Read an integer setting from a top level section, such as
+     * "dispatch: workers: 4".
+     * 
+     * @param section
+     * @param key
+     * @param def value to use if the setting is missing or malformed.
+     * @return
+     */
+    public int getInt(String section, String key, int def) {
+        ConfigurationSection sect = getSettings(section);
+        Integer value;
+        
+        try {
+            value = sect == null ? null : sect.getInt(key.toLowerCase());
+        } catch (NumberFormatException ex) {
+            return def;
+        }
+        
+        return value == null ? def : value;
+    }
+    
+    /**
+     * Read a boolean setting from a top level section, such as
+     * "users: directory: false".
+     * 
+     * @param section
+     * @param key
+     * @param def value to use if the setting is missing.
+     * @return
+     */
+    public boolean getBoolean(String section, String key, boolean def) {
+        ConfigurationSection sect = getSettings(section);
+        Boolean value = sect == null ? null : sect.getBoolean(key.toLowerCase());
+        
+        return value == null ? def : value;
+    }
+    
+    /**
+     * Read a string setting from a top level section, such as
+     * "passwords: algorithm: PBKDF2WithHmacSHA1".
+     * 
+     * @param section
+     * @param key
+     * @param def value to use if the setting is missing.
+     * @return
+     */
+    public String getString(String section, String key, String def) {
+        ConfigurationSection sect = getSettings(section);
+        String value = sect == null ? null : sect.getString(key.toLowerCase());
+        
+        if (value == null || value.isEmpty() || value.equals("null")) {
+            return def;
+        }
+        
+        return value;
+    }
+    
+    /**
+     * Look up a top level section for the typed getters above.
+     * 
+     * @param section
+     * @return the section, or null if there isn't one.
+     */
+    private ConfigurationSection getSettings(String section) {
+        try {
+            return config.getSection(section);
+        } catch (NoSuchSection ex) {
+            return null;
+        }
+    }
+    
     public List<File> getDirectories(String type) {
         ConfigurationSection dirsect;
         
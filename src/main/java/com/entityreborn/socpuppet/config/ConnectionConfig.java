@@ -25,6 +25,7 @@ package com.entityreborn.socpuppet.config;
 
 import com.entityreborn.config.ConfigurationSection;
 import com.entityreborn.config.exceptions.NoSuchSection;
+import com.entityreborn.socpuppet.util.CommandScanner;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
@@ -127,6 +128,19 @@ public class ConnectionConfig extends BaseConfig {
         return null;
     }
 
+    /**
+     * @return the prefix that marks a channel line as a command.
+     */
+    public String getCommandPrefix() {
+        String prefix = getConfigSection().getString("prefix");
+        
+        if (prefix == null || prefix.isEmpty() || "null".equals(prefix)) {
+            return CommandScanner.DEFAULT_PREFIX;
+        }
+        
+        return prefix;
+    }
+
     public boolean isActive() {
         return getConfigSection().getBoolean("active");
     }
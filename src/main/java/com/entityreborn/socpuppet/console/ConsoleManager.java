@@ -4,7 +4,6 @@ import com.entityreborn.socbot.Colors;
 import com.entityreborn.socpuppet.App;
 import com.entityreborn.socpuppet.extensions.ConsoleCommand;
 import com.entityreborn.socpuppet.extensions.ExtensionManager;
-import com.entityreborn.socpuppet.extensions.ExtensionTracker;
 import java.io.*;
 import java.text.SimpleDateFormat;
 import java.util.*;
@@ -150,18 +149,15 @@ public final class ConsoleManager {
             String trigger = regexMatcher.group(1);
             String args = regexMatcher.group(3);
             
-            for (ExtensionTracker tracker : ExtensionManager.Get().getTrackers().values()) {
-                if (tracker.getConsoleCommands().keySet().contains(trigger)) {
-                    ConsoleCommand trig = tracker.getConsoleCommands().get(trigger);
-                    System.out.println("Called " + trig.plugin() + ":" + trig.name());
-                    
-                    String response = trig.exec(trigger, args);
-                    
-                    if (response != null && !response.trim().isEmpty()) {
-                        System.out.println(response);
-                    }
-                    
-                    break;
+            ConsoleCommand trig = ExtensionManager.Get().getConsoleCommand(trigger);
+            
+            if (trig != null) {
+                System.out.println("Called " + trig.getDescriptor());
+                
+                String response = trig.exec(trigger, args);
+                
+                if (response != null && !response.trim().isEmpty()) {
+                    System.out.println(response);
                 }
             }
         }
@@ -26,60 +26,49 @@ package com.entityreborn.socpuppet.extensions;
 import com.entityreborn.socbot.events.PrivmsgEvent;
 import com.entityreborn.socpuppet.extensions.annotations.Permission;
 import com.entityreborn.socpuppet.extensions.annotations.Trigger;
-import com.laytonsmith.PureUtilities.ClassLoading.ClassDiscovery;
-import java.lang.annotation.Annotation;
-import java.net.URL;
 
 /**
  *
  * @author Jason Unger <entityreborn@gmail.com>
  */
 public abstract class AbstractTrigger {
+    private volatile TriggerDescriptor descriptor;
+    
     public abstract String exec(PrivmsgEvent event, String trigger, String args);
 
-    public Trigger getDefinition() {
-        for (Annotation a : getClass().getAnnotations()) {
-            if (a instanceof Trigger) {
-                Trigger e = (Trigger) a;
-
-                return e;
-            }
+    /**
+     * @return the metadata for this trigger. Set when the trigger is
+     * registered; computed on first use otherwise.
+     */
+    public TriggerDescriptor getDescriptor() {
+        TriggerDescriptor desc = descriptor;
+        
+        if (desc == null) {
+            desc = TriggerDescriptor.forClass(getClass());
+            descriptor = desc;
         }
+        
+        return desc;
+    }
+    
+    void setDescriptor(TriggerDescriptor descriptor) {
+        this.descriptor = descriptor;
+    }
 
-        return null;
+    public Trigger getDefinition() {
+        return getClass().getAnnotation(Trigger.class);
     }
     
     public String name() {
-        Trigger t = getDefinition();
-        
-        if (t != null) {
-            return t.name();
-        }
-
-        return "<unknown>";
+        return getDescriptor().getName();
     }
     
     public Permission permission() {
-        for (Annotation a : getClass().getAnnotations()) {
-            if (a instanceof Permission) {
-                Permission p = (Permission) a;
-
-                return p;
-            }
-        }
-
-        return null;
+        return getDescriptor().getPermission();
     }
 
     public String plugin() {
-        URL url = ClassDiscovery.GetClassContainer(getClass());
-
-        ExtensionTracker tracker = ExtensionManager.Get().getExtensionTracker(url);
-        if (tracker != null) {
-            return tracker.getIdentifier();
-        }
-
-        return "<unknown>";
+        return getDescriptor().getPlugin();
     }
 
     public abstract String docs();
@@ -25,48 +25,45 @@
 package com.entityreborn.socpuppet.extensions;
 
 import com.entityreborn.socpuppet.extensions.annotations.Trigger;
-import com.laytonsmith.PureUtilities.ClassLoading.ClassDiscovery;
-import java.lang.annotation.Annotation;
-import java.net.URL;
 
 /**
  *
  * @author import
  */
 public abstract class ConsoleCommand {
+    private volatile TriggerDescriptor descriptor;
+    
     public abstract String exec(String trigger, String args);
 
-    public Trigger getDefinition() {
-        for (Annotation a : getClass().getAnnotations()) {
-            if (a instanceof Trigger) {
-                Trigger e = (Trigger) a;
-
-                return e;
-            }
+    /**
+     * @return the metadata for this command. Set when the command is
+     * registered; computed on first use otherwise.
+     */
+    public TriggerDescriptor getDescriptor() {
+        TriggerDescriptor desc = descriptor;
+        
+        if (desc == null) {
+            desc = TriggerDescriptor.forClass(getClass());
+            descriptor = desc;
         }
-
-        return null;
+        
+        return desc;
     }
     
-    public String name() {
-        Trigger t = getDefinition();
-        
-        if (t != null) {
-            return t.name();
-        }
+    void setDescriptor(TriggerDescriptor descriptor) {
+        this.descriptor = descriptor;
+    }
 
-        return "<unknown>";
+    public Trigger getDefinition() {
+        return getClass().getAnnotation(Trigger.class);
     }
     
-    public String plugin() {
-        URL url = ClassDiscovery.GetClassContainer(getClass());
-
-        ExtensionTracker tracker = ExtensionManager.Get().getExtensionTracker(url);
-        if (tracker != null) {
-            return tracker.getIdentifier();
-        }
+    public String name() {
+        return getDescriptor().getName();
+    }
 
-        return "<unknown>";
+    public String plugin() {
+        return getDescriptor().getPlugin();
     }
 
     public abstract String docs();
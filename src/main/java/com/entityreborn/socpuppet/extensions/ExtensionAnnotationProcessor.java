@@ -1,8 +1,15 @@
 package com.entityreborn.socpuppet.extensions;
 
 import com.entityreborn.socpuppet.extensions.annotations.SocBotPlugin;
+import com.entityreborn.socpuppet.extensions.annotations.Trigger;
 import com.laytonsmith.PureUtilities.Common.ClassUtils;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.lang.annotation.Annotation;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -14,7 +21,12 @@ import javax.lang.model.SourceVersion;
 import javax.lang.model.element.Element;
 import javax.lang.model.element.Modifier;
 import javax.lang.model.element.TypeElement;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.Elements;
+import javax.lang.model.util.Types;
 import javax.tools.Diagnostic.Kind;
+import javax.tools.FileObject;
+import javax.tools.StandardLocation;
 
 /**
  * Extension processor to assert certain properties in a given extension. At runtime, 
@@ -23,13 +35,21 @@ import javax.tools.Diagnostic.Kind;
  * it finds, in terms of identification, yet in case of multiples, a warning will
  * be printed, and the system will call the appropriate methods on all lifecycle 
  * classes it finds, so that extensions aren't left hanging.
+ * <p>
+ * The plugin, trigger and console command classes found are written to an
+ * {@link ExtensionIndex}, so the jar can be loaded without being scanned.
  * 
  * @author Jason Unger <entityreborn@gmail.com>
  */
-@SupportedAnnotationTypes({"com.entityreborn.socpuppet.extensions.annotations.SocBotPlugin"})
+@SupportedAnnotationTypes({"com.entityreborn.socpuppet.extensions.annotations.SocBotPlugin",
+	"com.entityreborn.socpuppet.extensions.annotations.Trigger"})
 @SupportedSourceVersion(SourceVersion.RELEASE_6)
 public class ExtensionAnnotationProcessor extends AbstractProcessor {
 	int found = 0;
+	private final ExtensionIndex index = new ExtensionIndex();
+	// Cleared if a plugin couldn't be checked, as an index missing it would
+	// hide it at runtime.
+	private boolean indexComplete = true;
 
 	/**
 	 * Shortcut to stop the build process with an error.
@@ -70,6 +90,7 @@ public class ExtensionAnnotationProcessor extends AbstractProcessor {
                             clazz = getClassFromName(possible.toString());
                     } catch (ClassNotFoundException ex) {
                             Logger.getLogger(ExtensionAnnotationProcessor.class.getName()).log(Level.SEVERE, null, ex);
+                            indexComplete = false;
                             continue;
                     }
 
@@ -115,12 +136,130 @@ public class ExtensionAnnotationProcessor extends AbstractProcessor {
 
                     System.out.println("Extension '" + annotation.value() + "' checks out ok!");
 
+                    Map<String, String> values = new LinkedHashMap<>();
+                    values.put("value", annotation.value());
+                    index.add(new ExtensionIndex.Entry(ExtensionIndex.Kind.PLUGIN,
+                            binaryName(possible), values));
+
                     isExtensionWithLifecycleClass = true;
             }
 
+            for (Element possible : roundEnv.getElementsAnnotatedWith(Trigger.class)) {
+                    indexTrigger(possible);
+            }
+
+            if (roundEnv.processingOver()) {
+                    writeIndex();
+            }
+
             return isExtensionWithLifecycleClass;
     }
 
+    private void indexTrigger(Element element) {
+        Types types = processingEnv.getTypeUtils();
+        TypeMirror type = element.asType();
+        ExtensionIndex.Kind kind;
+
+        if (types.isAssignable(type, typeOf(AbstractTrigger.class))) {
+            kind = ExtensionIndex.Kind.TRIGGER;
+        } else if (types.isAssignable(type, typeOf(ConsoleCommand.class))) {
+            kind = ExtensionIndex.Kind.CONSOLE;
+        } else {
+            processingEnv.getMessager().printMessage(Kind.WARNING,
+                    "Triggers must extend AbstractTrigger or ConsoleCommand,"
+                    + " this one will be ignored.", element);
+            return;
+        }
+
+        Trigger trigger = element.getAnnotation(Trigger.class);
+        Map<String, String> values = new LinkedHashMap<>();
+        values.put("name", trigger.name());
+        values.put("id", trigger.id());
+        values.put("extendsId", trigger.extendsId());
+
+        index.add(new ExtensionIndex.Entry(kind, binaryName(element), values));
+    }
+
+    private TypeMirror typeOf(Class<?> clazz) {
+        return processingEnv.getTypeUtils().erasure(
+                processingEnv.getElementUtils().getTypeElement(clazz.getCanonicalName()).asType());
+    }
+
+    private String binaryName(Element element) {
+        return processingEnv.getElementUtils().getBinaryName((TypeElement) element).toString();
+    }
+
+    private void writeIndex() {
+        if (!indexComplete) {
+            return;
+        }
+
+        mergePreviousIndex();
+
+        if (index.isEmpty()) {
+            return;
+        }
+
+        try {
+            FileObject file = processingEnv.getFiler().createResource(
+                    StandardLocation.CLASS_OUTPUT, "", ExtensionIndex.PATH);
+
+            try (Writer writer = new OutputStreamWriter(file.openOutputStream(), "UTF-8")) {
+                index.write(writer);
+            }
+
+            System.out.println("Wrote " + index.getEntries().size() + " entries to " + ExtensionIndex.PATH);
+        } catch (IOException ex) {
+            // Not fatal, the jar will just be scanned at runtime instead.
+            processingEnv.getMessager().printMessage(Kind.WARNING,
+                    "Could not write " + ExtensionIndex.PATH + ": " + ex.getMessage());
+        }
+    }
+
+    /**
+     * An incremental build only hands us the classes it recompiled, so carry
+     * over entries from the index already in the output whose classes still
+     * exist and are still annotated. Without this the rewritten index would
+     * list only the recompiled classes, and the rest would vanish at runtime.
+     */
+    private void mergePreviousIndex() {
+        ExtensionIndex previous;
+
+        try {
+            FileObject file = processingEnv.getFiler().getResource(
+                    StandardLocation.CLASS_OUTPUT, "", ExtensionIndex.PATH);
+            previous = ExtensionIndex.read(file.openReader(true));
+        } catch (IOException | IllegalArgumentException ex) {
+            // No index from an earlier build, or one we can't use.
+            return;
+        }
+
+        Set<String> current = new HashSet<>();
+
+        for (ExtensionIndex.Entry entry : index.getEntries()) {
+            current.add(entry.getClassName());
+        }
+
+        Elements elements = processingEnv.getElementUtils();
+
+        for (ExtensionIndex.Entry entry : previous.getEntries()) {
+            if (current.contains(entry.getClassName())) {
+                continue;
+            }
+
+            TypeElement element = elements.getTypeElement(entry.getClassName().replace('$', '.'));
+            Class<? extends Annotation> annotation = entry.getKind() == ExtensionIndex.Kind.PLUGIN
+                    ? SocBotPlugin.class : Trigger.class;
+
+            if (element == null || element.getAnnotation(annotation) == null) {
+                System.out.println("Dropping " + entry.getClassName() + " from " + ExtensionIndex.PATH);
+                continue;
+            }
+
+            index.add(entry);
+        }
+    }
+
     private static Class getClassFromName(String className) throws ClassNotFoundException {
             return ClassUtils.forCanonicalName(className, false, ExtensionAnnotationProcessor.class.getClassLoader());
     }
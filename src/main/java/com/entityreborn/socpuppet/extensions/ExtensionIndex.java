@@ -0,0 +1,197 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Jason Unger <entityreborn@gmail.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.entityreborn.socpuppet.extensions;
+
+import com.entityreborn.socpuppet.util.TsvEscape;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.jar.JarFile;
+import java.util.zip.ZipEntry;
+
+/**
+ * The list of plugin, trigger and console command classes in a jar, written
+ * at build time by {@link ExtensionAnnotationProcessor}. A jar carrying one
+ * can be loaded without scanning its classes.
+ * <p>
+ * Each line is a kind, a binary class name, then the annotation's values as
+ * key=value, all separated by tabs. Tabs, newlines and backslashes in values
+ * are escaped with a backslash.
+ *
+ * @author Jason Unger <entityreborn@gmail.com>
+ */
+public class ExtensionIndex {
+    public static final String PATH = "META-INF/socpuppet/extensions.idx";
+
+    public static enum Kind {
+        PLUGIN,
+        TRIGGER,
+        CONSOLE
+    }
+
+    public static class Entry {
+        private final Kind kind;
+        private final String className;
+        private final Map<String, String> values;
+
+        public Entry(Kind kind, String className, Map<String, String> values) {
+            this.kind = kind;
+            this.className = className;
+            this.values = Collections.unmodifiableMap(new LinkedHashMap<>(values));
+        }
+
+        public Kind getKind() {
+            return kind;
+        }
+
+        /**
+         * @return the class's binary name, as taken by Class.forName.
+         */
+        public String getClassName() {
+            return className;
+        }
+
+        public Map<String, String> getValues() {
+            return values;
+        }
+    }
+
+    private final List<Entry> entries = new ArrayList<>();
+
+    public void add(Entry entry) {
+        entries.add(entry);
+    }
+
+    public List<Entry> getEntries() {
+        return Collections.unmodifiableList(entries);
+    }
+
+    public List<Entry> getEntries(Kind kind) {
+        List<Entry> ret = new ArrayList<>();
+
+        for (Entry entry : entries) {
+            if (entry.kind == kind) {
+                ret.add(entry);
+            }
+        }
+
+        return ret;
+    }
+
+    public boolean isEmpty() {
+        return entries.isEmpty();
+    }
+
+    /**
+     * Read the index out of a jar.
+     *
+     * @param jar
+     * @return the index, or null if the jar doesn't have one.
+     * @throws IOException if the jar or its index could not be read.
+     */
+    public static ExtensionIndex read(File jar) throws IOException {
+        try (JarFile file = new JarFile(jar)) {
+            ZipEntry entry = file.getEntry(PATH);
+
+            if (entry == null) {
+                return null;
+            }
+
+            return read(new InputStreamReader(file.getInputStream(entry), "UTF-8"));
+        }
+    }
+
+    /**
+     * Read an index, closing the reader when done.
+     *
+     * @param in
+     * @return the index.
+     * @throws IOException if the index could not be read or is malformed.
+     */
+    public static ExtensionIndex read(Reader in) throws IOException {
+        ExtensionIndex index = new ExtensionIndex();
+
+        try (BufferedReader reader = new BufferedReader(in)) {
+            String line;
+
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty()) {
+                    continue;
+                }
+
+                String[] parts = line.split("\t");
+
+                if (parts.length < 2) {
+                    throw new IOException("Malformed line in " + PATH + ": " + line);
+                }
+
+                Kind kind;
+
+                try {
+                    kind = Kind.valueOf(parts[0]);
+                } catch (IllegalArgumentException ex) {
+                    throw new IOException("Unknown kind in " + PATH + ": " + parts[0]);
+                }
+
+                Map<String, String> values = new LinkedHashMap<>();
+
+                for (int i = 2; i < parts.length; i++) {
+                    int eq = parts[i].indexOf('=');
+
+                    if (eq == -1) {
+                        throw new IOException("Malformed value in " + PATH + ": " + parts[i]);
+                    }
+
+                    values.put(parts[i].substring(0, eq), TsvEscape.unescape(parts[i].substring(eq + 1)));
+                }
+
+                index.add(new Entry(kind, parts[1], values));
+            }
+        }
+
+        return index;
+    }
+
+    public void write(Writer out) throws IOException {
+        for (Entry entry : entries) {
+            StringBuilder b = new StringBuilder();
+            b.append(entry.kind.name()).append('\t').append(entry.className);
+
+            for (Map.Entry<String, String> value : entry.values.entrySet()) {
+                b.append('\t').append(value.getKey()).append('=').append(TsvEscape.escape(value.getValue()));
+            }
+
+            out.write(b.append('\n').toString());
+        }
+    }
+}
@@ -17,8 +17,10 @@ import java.nio.file.Files;
 import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -33,6 +35,11 @@ public class ExtensionManager {
     private static ExtensionManager instance;
     private final Map<URL, ExtensionTracker> extensions = new HashMap<>();
     private final List<File> locations = new ArrayList<>();
+    
+    // Flattened name -> handler views over every tracker, swapped out whole
+    // whenever the set of trackers changes so readers never see a partial map.
+    private volatile Map<String, AbstractTrigger> triggerIndex = Collections.emptyMap();
+    private volatile Map<String, ConsoleCommand> consoleIndex = Collections.emptyMap();
 
     public static ExtensionManager Get() {
         if (instance == null) {
@@ -89,7 +96,10 @@ public class ExtensionManager {
             toProcess.addAll(getFiles(location));
         }
 
-        // Load the files into the discovery mechanism.
+        // Load the files into the discovery mechanism, unless they carry an
+        // index saying what they contain.
+        Map<File, ExtensionIndex> indexes = new LinkedHashMap<>();
+
         for (File file : toProcess) {
             if (!file.canRead()) {
                 continue;
@@ -103,6 +113,13 @@ public class ExtensionManager {
                 continue;
             }
 
+            ExtensionIndex index = readIndex(file);
+
+            if (index != null) {
+                indexes.put(file, index);
+                continue;
+            }
+
             dcl.addJar(jar);
             cd.addDiscoveryLocation(jar);
         }
@@ -117,6 +134,12 @@ public class ExtensionManager {
 
         // First, cache new lifecycle style extensions. They will be renamed to
         // use their internal name.
+        for (Map.Entry<File, ExtensionIndex> entry : indexes.entrySet()) {
+            for (ExtensionIndex.Entry plug : entry.getValue().getEntries(ExtensionIndex.Kind.PLUGIN)) {
+                cacheJar(entry.getKey(), plug.getValues().get("value"), extCache, done, namecount);
+            }
+        }
+
         for (ClassMirror<AbstractExtension> extmirror
                 : cd.getClassesWithAnnotationThatExtend(
                         SocBotPlugin.class, AbstractExtension.class)) {
@@ -141,45 +164,7 @@ public class ExtensionManager {
                     done.add(f);
                 }
 
-                // Skip files already processed.
-                if (done.contains(f)) {
-                    Logger.getLogger(ExtensionManager.class.getName()).log(Level.WARNING,
-                            f.getAbsolutePath() + " contains more than one extension"
-                            + " descriptor. Bug someone about it!");
-
-                    continue;
-                }
-
-                done.add(f);
-
-                String name = plug.getValue("value").toString();
-
-                // Just in case we have two plugins with the same internal name,
-                // lets track and rename them using a number scheme.
-                if (namecount.containsKey(name.toLowerCase())) {
-                    int i = namecount.get(name.toLowerCase());
-                    name += "-" + i;
-                    namecount.put(name.toLowerCase(), i++);
-
-                    Logger.getLogger(ExtensionManager.class.getName()).log(Level.WARNING,
-                            f.getAbsolutePath() + " contains a duplicate internally"
-                            + " named extension (" + name + "). Bug someone"
-                            + " about it!");
-                } else {
-                    namecount.put(name.toLowerCase(), 1);
-                }
-
-                // Rename the jar to use the plugin's internal name and 
-                // copy it into the cache.
-                File newFile = new File(extCache, name.toLowerCase() + ".jar");
-
-                try {
-                    Files.copy(f.toPath(), newFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
-                } catch (IOException ex) {
-                    Logger.getLogger(ExtensionManager.class.getName()).log(
-                            Level.SEVERE, "Could not copy '" + f.getName()
-                            + "' to cache: " + ex.getMessage());
-                }
+                cacheJar(f, plug.getValue("value").toString(), extCache, done, namecount);
             }
         }
 
@@ -194,6 +179,50 @@ public class ExtensionManager {
         System.gc();
     }
 
+    /**
+     * Copy an extension jar into the cache, named after the extension.
+     */
+    private void cacheJar(File f, String name, File extCache, Set<File> done,
+            Map<String, Integer> namecount) {
+        // Skip files already processed.
+        if (done.contains(f)) {
+            Logger.getLogger(ExtensionManager.class.getName()).log(Level.WARNING,
+                    f.getAbsolutePath() + " contains more than one extension"
+                    + " descriptor. Bug someone about it!");
+
+            return;
+        }
+
+        done.add(f);
+
+        // Just in case we have two plugins with the same internal name,
+        // lets track and rename them using a number scheme.
+        if (namecount.containsKey(name.toLowerCase())) {
+            int i = namecount.get(name.toLowerCase());
+            name += "-" + i;
+            namecount.put(name.toLowerCase(), i++);
+
+            Logger.getLogger(ExtensionManager.class.getName()).log(Level.WARNING,
+                    f.getAbsolutePath() + " contains a duplicate internally"
+                    + " named extension (" + name + "). Bug someone"
+                    + " about it!");
+        } else {
+            namecount.put(name.toLowerCase(), 1);
+        }
+
+        // Rename the jar to use the plugin's internal name and 
+        // copy it into the cache.
+        File newFile = new File(extCache, name.toLowerCase() + ".jar");
+
+        try {
+            Files.copy(f.toPath(), newFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException ex) {
+            Logger.getLogger(ExtensionManager.class.getName()).log(
+                    Level.SEVERE, "Could not copy '" + f.getName()
+                    + "' to cache: " + ex.getMessage());
+        }
+    }
+
     /**
      * Process the given location for any jars. If the location is a jar, add it
      * directly. If the location is a directory, look for jars in it.
@@ -233,6 +262,9 @@ public class ExtensionManager {
      * Initializes the extension manager. This operation is not necessarily
      * required, and must be guaranteed to not run more than once per
      * ClassDiscovery object.
+     * <p>
+     * Jars that carry an {@link ExtensionIndex} are loaded from it, and are
+     * never scanned. Only jars without one are added to the ClassDiscovery.
      *
      * @param cd the ClassDiscovery to use for loading files.
      * @param extCache
@@ -243,6 +275,7 @@ public class ExtensionManager {
         DynamicClassLoader dcl = new DynamicClassLoader();
         List<File> toProcess = new ArrayList<>();
         toProcess.addAll(getFiles(extCache));
+        List<ExtensionIndex> indexes = new ArrayList<>();
 
         for (File file : toProcess) {
             if (!file.canRead()) {
@@ -260,17 +293,45 @@ public class ExtensionManager {
 
             //First, load it with our custom class loader
             dcl.addJar(jar);
-            cd.addDiscoveryLocation(jar);
+
+            ExtensionIndex index = readIndex(file);
+
+            if (index != null) {
+                indexes.add(index);
+            } else {
+                cd.addDiscoveryLocation(jar);
+            }
         }
 
         cd.setDefaultClassLoader(dcl);
 
+        List<Class<? extends AbstractExtension>> plugins = new ArrayList<>();
+        List<Class<? extends AbstractTrigger>> triggers = new ArrayList<>();
+        List<Class<? extends ConsoleCommand>> commands = new ArrayList<>();
+
+        for (ExtensionIndex index : indexes) {
+            plugins.addAll(loadIndexed(index, ExtensionIndex.Kind.PLUGIN, AbstractExtension.class, dcl));
+            triggers.addAll(loadIndexed(index, ExtensionIndex.Kind.TRIGGER, AbstractTrigger.class, dcl));
+            commands.addAll(loadIndexed(index, ExtensionIndex.Kind.CONSOLE, ConsoleCommand.class, dcl));
+        }
+
         for (ClassMirror<AbstractExtension> extmirror
                 : cd.getClassesWithAnnotationThatExtend(
                         SocBotPlugin.class, AbstractExtension.class)) {
+            plugins.add(extmirror.loadClass(dcl, true));
+        }
+
+        for (ClassMirror<AbstractTrigger> extmirror : cd.getClassesWithAnnotationThatExtend(Trigger.class, AbstractTrigger.class)) {
+            triggers.add(extmirror.loadClass(dcl, true));
+        }
+
+        for (ClassMirror<ConsoleCommand> extmirror : cd.getClassesWithAnnotationThatExtend(Trigger.class, ConsoleCommand.class)) {
+            commands.add(extmirror.loadClass(dcl, true));
+        }
+
+        for (Class<? extends AbstractExtension> extcls : plugins) {
             Extension plugin;
 
-            Class<? extends AbstractExtension> extcls = extmirror.loadClass(dcl, true);
             URL url = ClassDiscovery.GetClassContainer(extcls);
 
             try {
@@ -289,10 +350,9 @@ public class ExtensionManager {
             extensions.get(url).addExtension(plugin);
         }
 
-        for (ClassMirror<AbstractTrigger> extmirror : cd.getClassesWithAnnotationThatExtend(Trigger.class, AbstractTrigger.class)) {
+        for (Class<? extends AbstractTrigger> extcls : triggers) {
             AbstractTrigger trig;
 
-            Class<AbstractTrigger> extcls = extmirror.loadClass(dcl, true);
             URL url = ClassDiscovery.GetClassContainer(extcls);
 
             try {
@@ -311,10 +371,9 @@ public class ExtensionManager {
             extensions.get(url).addTrigger(trig);
         }
         
-        for (ClassMirror<ConsoleCommand> extmirror : cd.getClassesWithAnnotationThatExtend(Trigger.class, ConsoleCommand.class)) {
+        for (Class<? extends ConsoleCommand> extcls : commands) {
             ConsoleCommand trig;
 
-            Class<ConsoleCommand> extcls = extmirror.loadClass(dcl, true);
             URL url = ClassDiscovery.GetClassContainer(extcls);
 
             try {
@@ -332,6 +391,127 @@ public class ExtensionManager {
 
             extensions.get(url).addConsoleCommand(trig);
         }
+        
+        rebuildIndex();
+    }
+    
+    /**
+     * @param jar
+     * @return the jar's extension index, or null if it has none or it could
+     * not be read, in which case the jar should be scanned instead.
+     */
+    private ExtensionIndex readIndex(File jar) {
+        try {
+            return ExtensionIndex.read(jar);
+        } catch (IOException ex) {
+            Logger.getLogger(ExtensionManager.class.getName()).log(Level.WARNING,
+                    "Could not read the extension index in " + jar.getName()
+                    + ", scanning it instead: " + ex.getMessage());
+            return null;
+        }
+    }
+
+    private <T> List<Class<? extends T>> loadIndexed(ExtensionIndex index,
+            ExtensionIndex.Kind kind, Class<T> type, ClassLoader loader) {
+        List<Class<? extends T>> classes = new ArrayList<>();
+
+        for (ExtensionIndex.Entry entry : index.getEntries(kind)) {
+            try {
+                classes.add(Class.forName(entry.getClassName(), true, loader).asSubclass(type));
+            } catch (ClassNotFoundException | ClassCastException ex) {
+                //Error, but skip this one, don't throw an exception ourselves, just log it.
+                Logger.getLogger(ExtensionManager.class.getName()).log(Level.SEVERE,
+                        "Could not load indexed class " + entry.getClassName() + ": " + ex.getMessage());
+            }
+        }
+
+        return classes;
+    }
+    
+    /**
+     * Rebuild the trigger and console command lookup tables from the current
+     * set of trackers. When two trackers expose the same name, the one
+     * containing SocPuppet itself wins, then the one whose location sorts
+     * first. Losing registrations are logged and ignored.
+     */
+    synchronized void rebuildIndex() {
+        final URL core = ClassDiscovery.GetClassContainer(ExtensionManager.class);
+        List<ExtensionTracker> ordered = new ArrayList<>(extensions.values());
+        
+        Collections.sort(ordered, new Comparator<ExtensionTracker>() {
+            @Override
+            public int compare(ExtensionTracker o1, ExtensionTracker o2) {
+                boolean core1 = o1.getLocation().equals(core);
+                boolean core2 = o2.getLocation().equals(core);
+                
+                if (core1 != core2) {
+                    return core1 ? -1 : 1;
+                }
+                
+                return o1.getLocation().toString().compareTo(o2.getLocation().toString());
+            }
+        });
+        
+        Map<String, AbstractTrigger> newTriggers = new HashMap<>();
+        Map<String, ConsoleCommand> newCommands = new HashMap<>();
+        
+        for (ExtensionTracker tracker : ordered) {
+            for (Map.Entry<String, AbstractTrigger> entry : tracker.triggers.entrySet()) {
+                if (newTriggers.containsKey(entry.getKey())) {
+                    Logger.getLogger(ExtensionManager.class.getName()).log(Level.WARNING,
+                            "Trigger '" + entry.getKey() + "' from " + tracker.getLocation()
+                            + " is shadowed by an earlier registration.");
+                    continue;
+                }
+                
+                newTriggers.put(entry.getKey(), entry.getValue());
+            }
+            
+            for (Map.Entry<String, ConsoleCommand> entry : tracker.consoleCommands.entrySet()) {
+                if (newCommands.containsKey(entry.getKey())) {
+                    Logger.getLogger(ExtensionManager.class.getName()).log(Level.WARNING,
+                            "Console command '" + entry.getKey() + "' from " + tracker.getLocation()
+                            + " is shadowed by an earlier registration.");
+                    continue;
+                }
+                
+                newCommands.put(entry.getKey(), entry.getValue());
+            }
+        }
+        
+        triggerIndex = Collections.unmodifiableMap(newTriggers);
+        consoleIndex = Collections.unmodifiableMap(newCommands);
+    }
+    
+    /**
+     * Stop tracking the given tracker and drop its registrations from the
+     * lookup tables.
+     * 
+     * @param tracker
+     */
+    synchronized void untrack(ExtensionTracker tracker) {
+        extensions.remove(tracker.getLocation());
+        rebuildIndex();
+    }
+    
+    /**
+     * Look up a trigger by name across all loaded extensions.
+     * 
+     * @param name
+     * @return the trigger, or null if nothing is registered under that name.
+     */
+    public AbstractTrigger getTrigger(String name) {
+        return triggerIndex.get(name);
+    }
+    
+    /**
+     * Look up a console command by name across all loaded extensions.
+     * 
+     * @param name
+     * @return the command, or null if nothing is registered under that name.
+     */
+    public ConsoleCommand getConsoleCommand(String name) {
+        return consoleIndex.get(name);
     }
 
     public Map<URL, ExtensionTracker> getTrackers() {
@@ -57,6 +57,8 @@ public class ExtensionTracker {
         cd.removeDiscoveryLocation(location);
         cd.removePreCache(location);
         dcl.removeJar(location);
+        
+        ExtensionManager.Get().untrack(this);
     }
 
     public URL getLocation() {
@@ -107,11 +109,17 @@ public class ExtensionTracker {
     }
 
     void addTrigger(AbstractTrigger trig) {
-        triggers.put(trig.name().toLowerCase(), trig);
+        TriggerDescriptor desc = TriggerDescriptor.of(trig.getClass(), identifier);
+        trig.setDescriptor(desc);
+        
+        triggers.put(desc.getName().toLowerCase(), trig);
     }
     
     void addConsoleCommand(ConsoleCommand trig) {
-        consoleCommands.put(trig.name().toLowerCase(), trig);
+        TriggerDescriptor desc = TriggerDescriptor.of(trig.getClass(), identifier);
+        trig.setDescriptor(desc);
+        
+        consoleCommands.put(desc.getName().toLowerCase(), trig);
     }
 
     public Map<String, AbstractTrigger> getTriggers() {
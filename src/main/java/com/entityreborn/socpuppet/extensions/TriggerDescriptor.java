@@ -0,0 +1,131 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Jason Unger <entityreborn@gmail.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.entityreborn.socpuppet.extensions;
+
+import com.entityreborn.socpuppet.extensions.annotations.Permission;
+import com.entityreborn.socpuppet.extensions.annotations.Permission.DefaultTo;
+import com.entityreborn.socpuppet.extensions.annotations.Trigger;
+import com.laytonsmith.PureUtilities.ClassLoading.ClassDiscovery;
+import java.net.URL;
+
+/**
+ * The annotation metadata of a trigger or console command, read once when
+ * it is registered.
+ *
+ * @author Jason Unger <entityreborn@gmail.com>
+ */
+public final class TriggerDescriptor {
+    private final String name;
+    private final String id;
+    private final String plugin;
+    private final Permission permission;
+
+    private TriggerDescriptor(String name, String id, String plugin, Permission permission) {
+        this.name = name;
+        this.id = id;
+        this.plugin = plugin;
+        this.permission = permission;
+    }
+
+    /**
+     * Build a descriptor from the annotations on a trigger class.
+     *
+     * @param cls the AbstractTrigger or ConsoleCommand class.
+     * @param plugin identifier of the owning extension, or null.
+     * @return
+     */
+    public static TriggerDescriptor of(Class<?> cls, String plugin) {
+        Trigger trigger = cls.getAnnotation(Trigger.class);
+        Permission permission = cls.getAnnotation(Permission.class);
+
+        String name = "<unknown>";
+        String id = "";
+
+        if (trigger != null) {
+            name = trigger.name();
+            id = trigger.id();
+        }
+
+        if (plugin == null) {
+            plugin = "<unknown>";
+        }
+
+        return new TriggerDescriptor(name, id, plugin, permission);
+    }
+
+    /**
+     * Build a descriptor for a trigger class that wasn't given one when it
+     * was registered, looking up its owning extension from where the class
+     * was loaded.
+     *
+     * @param cls the AbstractTrigger or ConsoleCommand class.
+     * @return
+     */
+    static TriggerDescriptor forClass(Class<?> cls) {
+        URL url = ClassDiscovery.GetClassContainer(cls);
+        ExtensionTracker tracker = ExtensionManager.Get().getExtensionTracker(url);
+
+        return of(cls, tracker == null ? null : tracker.getIdentifier());
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getPlugin() {
+        return plugin;
+    }
+
+    /**
+     * @return the permission annotation, or null if none is required.
+     */
+    public Permission getPermission() {
+        return permission;
+    }
+
+    public boolean requiresPermission() {
+        return permission != null;
+    }
+
+    /**
+     * @return the required permission node, or null if none is required.
+     */
+    public String getPermissionNode() {
+        return permission == null ? null : permission.node();
+    }
+
+    public boolean isAllowedByDefault() {
+        return permission != null && permission.defaultTo() == DefaultTo.ALLOW;
+    }
+
+    @Override
+    public String toString() {
+        return plugin + ":" + name;
+    }
+}
@@ -0,0 +1,260 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Jason Unger <entityreborn@gmail.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.entityreborn.socpuppet.extensions;
+
+import com.entityreborn.socbot.Target;
+import com.entityreborn.socbot.events.PrivmsgEvent;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs triggers on a small worker pool instead of the connection's read
+ * thread. Work for the same connection and target runs in the order it was
+ * submitted, one at a time; different targets run in parallel. Each target
+ * may only have so many triggers waiting, and so may all targets together,
+ * after which new ones are refused. A target only has a lane while it has
+ * triggers waiting, so the number of lanes is bounded the same way.
+ *
+ * @author Jason Unger <entityreborn@gmail.com>
+ */
+public class TriggerDispatcher {
+    private final ExecutorService workers;
+    private final ConcurrentMap<String, Lane> lanes = new ConcurrentHashMap<>();
+    private final AtomicInteger pending = new AtomicInteger();
+    private final int backlog;
+    private final int capacity;
+
+    /**
+     * @param workerCount how many triggers may run at once.
+     * @param backlog how many triggers one target may have waiting.
+     * @param capacity how many triggers all targets together may have
+     * waiting.
+     */
+    public TriggerDispatcher(int workerCount, int backlog, int capacity) {
+        this.backlog = Math.max(1, backlog);
+        this.capacity = Math.max(this.backlog, capacity);
+
+        final AtomicInteger count = new AtomicInteger();
+        workers = Executors.newFixedThreadPool(Math.max(1, workerCount), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "trigger-worker-" + count.incrementAndGet());
+                t.setDaemon(true);
+
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Queue a trigger to be run for the given event. The response, if any,
+     * is sent to the target once the trigger finishes.
+     *
+     * @param trig
+     * @param event
+     * @param target where to send the response.
+     * @param trigger
+     * @param args
+     * @return false if the target's backlog or the dispatcher is full, or
+     * it is shutting down, and the trigger was dropped.
+     */
+    public boolean dispatch(final AbstractTrigger trig, final PrivmsgEvent event,
+            final Target target, final String trigger, final String args) {
+        String key = event.getBot().getID() + "/" + target.getName().toLowerCase();
+
+        return submit(key, new Runnable() {
+            @Override
+            public void run() {
+                String response = trig.exec(event, trigger, args);
+
+                if (response != null && !response.trim().isEmpty()) {
+                    target.sendMsg(response);
+                }
+            }
+        });
+    }
+
+    boolean submit(String key, Runnable task) {
+        while (true) {
+            Lane lane = lanes.get(key);
+
+            if (lane == null) {
+                Lane fresh = new Lane(key);
+                lane = lanes.putIfAbsent(key, fresh);
+
+                if (lane == null) {
+                    lane = fresh;
+                }
+            }
+
+            synchronized (lane) {
+                if (lane.retired) {
+                    // Drained and removed while we were looking; get a new one.
+                    continue;
+                }
+
+                if (lane.tasks.size() >= backlog) {
+                    return false;
+                }
+
+                if (pending.incrementAndGet() > capacity) {
+                    pending.decrementAndGet();
+                    return false;
+                }
+
+                if (!lane.scheduled) {
+                    try {
+                        workers.execute(lane);
+                    } catch (RejectedExecutionException ex) {
+                        // Shutting down.
+                        pending.decrementAndGet();
+                        return false;
+                    }
+
+                    lane.scheduled = true;
+                }
+
+                lane.tasks.add(task);
+
+                return true;
+            }
+        }
+    }
+
+    /**
+     * @return the number of triggers waiting or running across all targets.
+     */
+    public int getQueueDepth() {
+        return pending.get();
+    }
+
+    /**
+     * @param bot the connection id.
+     * @param target channel or nick.
+     * @return the number of triggers waiting or running for one target.
+     */
+    public int getQueueDepth(String bot, String target) {
+        Lane lane = lanes.get(bot + "/" + target.toLowerCase());
+
+        if (lane == null) {
+            return 0;
+        }
+
+        synchronized (lane) {
+            return lane.tasks.size();
+        }
+    }
+
+    public void shutdown() {
+        workers.shutdown();
+
+        try {
+            workers.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private class Lane implements Runnable {
+        final String key;
+        final Queue<Runnable> tasks = new ArrayDeque<>();
+        boolean scheduled = false;
+        boolean retired = false;
+
+        Lane(String key) {
+            this.key = key;
+        }
+
+        @Override
+        public void run() {
+            Runnable task;
+
+            synchronized (this) {
+                task = tasks.peek();
+            }
+
+            runTask(task);
+
+            Queue<Runnable> rest = null;
+
+            synchronized (this) {
+                tasks.poll();
+                pending.decrementAndGet();
+
+                if (tasks.isEmpty()) {
+                    retire();
+                } else {
+                    // Requeue instead of looping, so a busy target can't
+                    // hog a worker.
+                    try {
+                        workers.execute(this);
+                    } catch (RejectedExecutionException ex) {
+                        // Shutting down. These were already accepted, so
+                        // finish them here rather than drop them.
+                        rest = new ArrayDeque<>(tasks);
+                        tasks.clear();
+                        retire();
+                    }
+                }
+            }
+
+            if (rest != null) {
+                Logger.getLogger(TriggerDispatcher.class.getName()).log(Level.INFO,
+                        "Shutting down; running the {0} remaining trigger(s) for {1} now",
+                        new Object[]{rest.size(), key});
+
+                for (Runnable t : rest) {
+                    runTask(t);
+                    pending.decrementAndGet();
+                }
+            }
+        }
+
+        private void runTask(Runnable task) {
+            try {
+                task.run();
+            } catch (Throwable t) {
+                Logger.getLogger(TriggerDispatcher.class.getName()).log(
+                        Level.SEVERE, "Trigger for " + key + " caused an exception", t);
+            }
+        }
+
+        private void retire() {
+            scheduled = false;
+            retired = true;
+            lanes.remove(key, this);
+        }
+    }
+}
@@ -45,16 +45,18 @@ import com.entityreborn.socbot.events.QuitEvent;
 import com.entityreborn.socbot.events.WelcomeEvent;
 import com.entityreborn.socbot.eventsystem.EventHandler;
 import com.entityreborn.socbot.eventsystem.Listener;
+import com.entityreborn.socpuppet.SocPuppet;
 import com.entityreborn.socpuppet.config.BotConfig;
 import com.entityreborn.socpuppet.config.ChannelConfig;
 import com.entityreborn.socpuppet.config.ConnectionConfig;
 import com.entityreborn.socpuppet.extensions.AbstractTrigger;
 import com.entityreborn.socpuppet.extensions.ExtensionManager;
-import com.entityreborn.socpuppet.extensions.ExtensionTracker;
-import com.entityreborn.socpuppet.extensions.annotations.Permission;
-import com.entityreborn.socpuppet.extensions.annotations.Permission.DefaultTo;
+import com.entityreborn.socpuppet.extensions.TriggerDescriptor;
+import com.entityreborn.socpuppet.extensions.TriggerDispatcher;
 import com.entityreborn.socpuppet.users.RegisteredUser;
 import com.entityreborn.socpuppet.users.SocPuppetUser;
+import com.entityreborn.socpuppet.util.CommandScanner;
+import com.entityreborn.socpuppet.util.CommandScanner.Command;
 import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileWriter;
@@ -68,9 +70,11 @@ import java.util.regex.Pattern;
  */
 public class BuiltinListener implements Listener {
     BotConfig config;
+    TriggerDispatcher dispatcher;
 
-    public BuiltinListener(BotConfig config) {
+    public BuiltinListener(BotConfig config, TriggerDispatcher dispatcher) {
         this.config = config;
+        this.dispatcher = dispatcher;
     }
     
     public void debug(SocBot bot, String message) {
@@ -143,10 +147,10 @@ public class BuiltinListener implements Listener {
         }
     }
     
-    private final Pattern regex = Pattern.compile("^\\^([^\\ ]+)(\\s+?(.*))?", Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE | Pattern.MULTILINE | Pattern.COMMENTS);
     @EventHandler
     public void handleMsg(PrivmsgEvent event) {
-	Matcher regexMatcher = regex.matcher(event.getMessage());
+        CommandScanner scanner = ((SocPuppet) event.getBot()).getCommandScanner();
+        Command command = scanner.scan(event.getMessage());
         
         Target target = event.getTarget();
         
@@ -162,56 +166,49 @@ public class BuiltinListener implements Listener {
             }
         }
         
-        if (regexMatcher.matches()) {
-            String trigger = regexMatcher.group(1);
-            String args = regexMatcher.group(3);
-            if (args == null) {
-                args = "";
-            }
+        if (command != null) {
+            String trigger = command.getTrigger();
+            String args = command.getArgs();
             
-            for (ExtensionTracker tracker : ExtensionManager.Get().getTrackers().values()) {
-                if (tracker.getTriggers().keySet().contains(trigger)) {
-                    AbstractTrigger trig = tracker.getTriggers().get(trigger);
-                    System.out.println("Called " + trig.plugin() + ":" + trig.name());
-                    
-                    SocPuppetUser user = (SocPuppetUser)event.getUser();
-                    Permission perm = trig.permission();
+            AbstractTrigger trig = ExtensionManager.Get().getTrigger(trigger);
+            
+            if (trig != null) {
+                TriggerDescriptor desc = trig.getDescriptor();
+                System.out.println("Called " + desc);
+                
+                SocPuppetUser user = (SocPuppetUser)event.getUser();
+                
+                if (desc.requiresPermission()) {
+                    RegisteredUser regUser = user.getRegistration();
                     
-                    if (perm != null) {
-                        RegisteredUser regUser = user.getRegistration();
-                        
-                        if (regUser == null) {
-                            target.sendMsg("You aren't logged in! This"
-                                    + " command requires the '" + perm.node()
-                                    + "' permission.");
-                            
-                            event.setCancelled(true);
-                            
-                            return;
-                        }
+                    if (regUser == null) {
+                        target.sendMsg("You aren't logged in! This"
+                                + " command requires the '" + desc.getPermissionNode()
+                                + "' permission.");
                         
-                        boolean hasPerm = user.getRegistration().hasPerm(
-                                perm.node(), perm.defaultTo() == DefaultTo.ALLOW);
+                        event.setCancelled(true);
                         
-                        if (!hasPerm) {
-                            target.sendMsg("I'm sorry, you don't have"
-                                    + " permission to run this command! This"
-                                    + " command requires the '" + perm.node()
-                                    + "' permission.");
-                            
-                            event.setCancelled(true);
-                            
-                            return;
-                        }
+                        return;
                     }
                     
-                    String response = trig.exec(event, trigger, args);
+                    boolean hasPerm = regUser.hasPerm(
+                            desc.getPermissionNode(), desc.isAllowedByDefault());
                     
-                    if (response != null && !response.trim().isEmpty()) {
-                        target.sendMsg(response);
+                    if (!hasPerm) {
+                        target.sendMsg("I'm sorry, you don't have"
+                                + " permission to run this command! This"
+                                + " command requires the '" + desc.getPermissionNode()
+                                + "' permission.");
+                        
+                        event.setCancelled(true);
+                        
+                        return;
                     }
-                    
-                    break;
+                }
+                
+                if (!dispatcher.dispatch(trig, event, target, trigger, args)) {
+                    target.sendMsg("I'm a bit busy right now, try that again"
+                            + " in a moment.");
                 }
             }
         }
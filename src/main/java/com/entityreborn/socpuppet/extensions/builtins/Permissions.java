@@ -24,6 +24,7 @@
 
 package com.entityreborn.socpuppet.extensions.builtins;
 
+import com.entityreborn.socbot.Target;
 import com.entityreborn.socbot.events.PrivmsgEvent;
 import com.entityreborn.socpuppet.SocPuppet;
 import com.entityreborn.socpuppet.extensions.AbstractTrigger;
@@ -33,7 +34,9 @@ import com.entityreborn.socpuppet.users.RegisteredUser;
 import com.entityreborn.socpuppet.users.SocPuppetUser;
 import com.entityreborn.socpuppet.users.UserException;
 import com.entityreborn.socpuppet.users.UserManager;
+import com.entityreborn.socpuppet.util.PasswordExecutor;
 import java.sql.SQLException;
+import java.util.concurrent.Callable;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -42,6 +45,55 @@ import java.util.logging.Logger;
  * @author Jason Unger <entityreborn@gmail.com>
  */
 public class Permissions {
+    /**
+     * Where to send a reply to the given message: the channel, or the
+     * sender if it was sent to the bot directly.
+     */
+    private static Target replyTarget(PrivmsgEvent event) {
+        if (event.getTarget().getName().equals(event.getBot().getNickname())) {
+            return event.getSender();
+        }
+        
+        return event.getTarget();
+    }
+    
+    /**
+     * Run password work off the trigger workers, replying when it's done.
+     * @return a reply to send straight away, or null if the task was queued.
+     */
+    private static String submitHashing(PrivmsgEvent event, final Callable<String> task) {
+        final Target target = replyTarget(event);
+        
+        PasswordExecutor.Admission admission = PasswordExecutor.get().submit(
+                event.getSender().getHostmask(), new Runnable() {
+            @Override
+            public void run() {
+                String response;
+                
+                try {
+                    response = task.call();
+                } catch (Exception ex) {
+                    Logger.getLogger(Permissions.class.getName())
+                            .log(Level.SEVERE, null, ex);
+                    response = "Error ocurred: " + ex.getMessage();
+                }
+                
+                if (response != null) {
+                    target.sendMsg(response);
+                }
+            }
+        });
+        
+        switch (admission) {
+            case THROTTLED:
+                return "Too many attempts, try again later.";
+            case BUSY:
+                return "I'm a bit busy right now, try that again in a moment.";
+            default:
+                return null;
+        }
+    }
+    
     @Trigger(name="login", id="core.user.login")
     public static class login extends AbstractTrigger {
         @Override
@@ -50,24 +102,36 @@ public class Permissions {
                 return null;
             }
             
-            SocPuppetUser user = (SocPuppetUser)event.getUser();
+            final SocPuppetUser user = (SocPuppetUser)event.getUser();
+            final String username;
+            final String password;
             
             String[] parts = args.split(" ", 2);
             
-            try {
-                if (parts.length == 1) {
-                    String username = event.getSender().getName();
-                    user.attemptLogin(username, parts[0]);
-                } else {
-                    user.attemptLogin(parts[0], parts[1]);
-                }
-                
-                return "Successfully logged in.";
-            } catch (UserException.IncorrectPassword | UserException.UnknownUser ex) {
-                return "Incorrect password or unknown user.";
-            } catch (Exception ex) {
-                return "Error ocurred during login: " + ex.getMessage();
+            if (parts.length == 1) {
+                username = event.getSender().getName();
+                password = parts[0];
+            } else {
+                username = parts[0];
+                password = parts[1];
             }
+            
+            return submitHashing(event, new Callable<String>() {
+                @Override
+                public String call() {
+                    try {
+                        if (!user.attemptLogin(username, password)) {
+                            return "Incorrect password or unknown user.";
+                        }
+                        
+                        return "Successfully logged in.";
+                    } catch (UserException.IncorrectPassword | UserException.UnknownUser ex) {
+                        return "Incorrect password or unknown user.";
+                    } catch (Exception ex) {
+                        return "Error ocurred during login: " + ex.getMessage();
+                    }
+                }
+            });
         }
 
         @Override
@@ -77,6 +141,31 @@ public class Permissions {
         }
     }
     
+    @Trigger(name="logout", id="core.user.logout")
+    public static class logout extends AbstractTrigger {
+        @Override
+        public String exec(PrivmsgEvent event, String trigger, String args) {
+            if (!(event.getUser() instanceof SocPuppetUser)) {
+                return null;
+            }
+            
+            SocPuppetUser user = (SocPuppetUser)event.getUser();
+            
+            if (!user.isLoggedIn()) {
+                return "You aren't logged in!";
+            }
+            
+            user.logout();
+            
+            return "Successfully logged out.";
+        }
+
+        @Override
+        public String docs() {
+            return "logout - Log out of the bot.";
+        }
+    }
+    
     @Trigger(name="register", id="core.user.register")
     public static class register extends AbstractTrigger {
 
@@ -93,27 +182,32 @@ public class Permissions {
                 args = args.replaceFirst("^--global\\s+", "");
             }
             
-            String[] parts = args.split(" ", 3); // username, email, password
+            final String[] parts = args.split(" ", 3); // username, email, password
             if (parts.length != 3) {
                 return docs();
             }
             
-            UserManager manager;
+            final UserManager manager;
             if (!isGlobal) {
                 manager = UserManager.get((SocPuppet) user.getBot());
             } else {
                 manager = UserManager.get(null);
             }
             
-            try {
-                manager.registerUser(parts[0], parts[2], parts[1]);
-            } catch (UserException.UserExists ex) {
-                return "That user already exists!";
-            } catch (UserException.UserRegistrationException ex) {
-                return "Error ocurred during registration: " + ex.getMessage();
-            }
-            
-            return "Successfully registered! Use ^login to log in.";
+            return submitHashing(event, new Callable<String>() {
+                @Override
+                public String call() {
+                    try {
+                        manager.registerUser(parts[0], parts[2], parts[1]);
+                    } catch (UserException.UserExists ex) {
+                        return "That user already exists!";
+                    } catch (UserException.UserRegistrationException ex) {
+                        return "Error ocurred during registration: " + ex.getMessage();
+                    }
+                    
+                    return "Successfully registered! Use ^login to log in.";
+                }
+            });
         }
 
         @Override
@@ -196,9 +290,10 @@ public class Permissions {
             user.addPerm(parts[1]);
             
             try {
-                user.update();
+                user.queueUpdate();
             } catch (SQLException ex) {
                 Logger.getLogger(SocBotCore.class.getName()).log(Level.SEVERE, null, ex);
+                return "Could not save that: " + ex.getMessage();
             }
             
             return "Done";
@@ -239,9 +334,10 @@ public class Permissions {
             registration.addAuthMask(user.getHostmask());
             
             try {
-                registration.update();
+                registration.queueUpdate();
             } catch (SQLException ex) {
                 Logger.getLogger(SocBotCore.class.getName()).log(Level.SEVERE, null, ex);
+                return "Could not save that: " + ex.getMessage();
             }
             
             return "Done";
@@ -286,9 +382,10 @@ public class Permissions {
             user.removePerm(parts[1]);
             
             try {
-                user.update();
+                user.queueUpdate();
             } catch (SQLException ex) {
                 Logger.getLogger(SocBotCore.class.getName()).log(Level.SEVERE, null, ex);
+                return "Could not save that: " + ex.getMessage();
             }
             
             return "Done";
@@ -24,6 +24,8 @@
 package com.entityreborn.socpuppet.extensions.builtins;
 
 import com.entityreborn.socbot.events.PrivmsgEvent;
+import com.entityreborn.socpuppet.App;
+import com.entityreborn.socpuppet.SocPuppet;
 import com.entityreborn.socpuppet.console.ConsoleManager;
 import com.entityreborn.socpuppet.extensions.AbstractExtension;
 import com.entityreborn.socpuppet.extensions.AbstractTrigger;
@@ -31,8 +33,15 @@ import com.entityreborn.socpuppet.extensions.ConsoleCommand;
 import com.entityreborn.socpuppet.extensions.annotations.Permission;
 import com.entityreborn.socpuppet.extensions.annotations.SocBotPlugin;
 import com.entityreborn.socpuppet.extensions.annotations.Trigger;
+import com.entityreborn.socpuppet.users.UserManager;
+import com.entityreborn.socpuppet.users.UserTransfer;
+import com.entityreborn.socpuppet.util.Password;
+import com.entityreborn.socpuppet.util.PasswordExecutor;
 import com.entityreborn.socpuppet.util.Restart;
+import com.entityreborn.socpuppet.util.SqliteConnectionSource;
+import java.io.File;
 import java.io.IOException;
+import java.sql.SQLException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -88,6 +97,184 @@ public class SocBotCore extends AbstractExtension {
         }
     }
 
+    @Trigger(name = "dbstats", id = "core.general.dbstats")
+    public static class console_dbstats extends ConsoleCommand {
+
+        @Override
+        public String exec(String trigger, String args) {
+            StringBuilder sb = new StringBuilder();
+            
+            for (SqliteConnectionSource source : SqliteConnectionSource.getSources()) {
+                sb.append(source).append('\n');
+            }
+            
+            if (sb.length() == 0) {
+                return "No databases open.";
+            }
+            
+            return sb.toString().trim();
+        }
+
+        @Override
+        public String docs() {
+            return "dbstats - Shows connection pool and statement timings per database.";
+        }
+    }
+
+    @Trigger(name = "hashstats", id = "core.general.hashstats")
+    public static class console_hashstats extends ConsoleCommand {
+
+        @Override
+        public String exec(String trigger, String args) {
+            return PasswordExecutor.get().toString();
+        }
+
+        @Override
+        public String docs() {
+            return "hashstats - Shows password hashing queue depth and timings.";
+        }
+    }
+
+    @Trigger(name = "hashbench", id = "core.general.hashbench")
+    public static class console_hashbench extends ConsoleCommand {
+
+        @Override
+        public String exec(String trigger, String args) {
+            String[] parts = args == null || args.trim().isEmpty() ? new String[0] : args.trim().split("\\s+");
+            int[] candidates;
+            
+            try {
+                if (parts.length == 0) {
+                    int current = Password.getIterations();
+                    candidates = new int[]{current / 2, current, current * 2, current * 4};
+                } else {
+                    candidates = new int[parts.length];
+                    
+                    for (int i = 0; i < parts.length; i++) {
+                        candidates[i] = Integer.parseInt(parts[i]);
+                    }
+                }
+            } catch (NumberFormatException ex) {
+                return docs();
+            }
+            
+            StringBuilder sb = new StringBuilder(Password.getAlgorithm());
+            
+            try {
+                for (int iterations : candidates) {
+                    long micros = Password.time(Password.getAlgorithm(), Math.max(1, iterations), 5);
+                    sb.append('\n').append(iterations).append(" iterations: ")
+                            .append(micros / 1000.0).append("ms per hash");
+                }
+            } catch (Exception ex) {
+                return "Could not hash: " + ex.getMessage();
+            }
+            
+            return sb.toString();
+        }
+
+        @Override
+        public String docs() {
+            return "hashbench [iterations...] - Times password hashing at the"
+                    + " given costs, or around the current one.";
+        }
+    }
+
+    @Trigger(name = "userdir", id = "core.general.userdir")
+    public static class console_userdir extends ConsoleCommand {
+
+        @Override
+        public String exec(String trigger, String args) {
+            StringBuilder sb = new StringBuilder();
+            
+            for (UserManager manager : UserManager.getManagers()) {
+                int size = manager.getDirectorySize();
+                
+                sb.append(manager.getIdentifier()).append(": ");
+                
+                if (size < 0) {
+                    sb.append("not held in memory");
+                } else {
+                    sb.append(size).append(" user(s), about ")
+                            .append(manager.estimateDirectoryBytes() / 1024)
+                            .append("KiB");
+                }
+                
+                sb.append('\n');
+            }
+            
+            if (sb.length() == 0) {
+                return "No user databases open.";
+            }
+            
+            return sb.toString().trim();
+        }
+
+        @Override
+        public String docs() {
+            return "userdir - Shows how many users each database holds in"
+                    + " memory, and roughly how much memory that takes.";
+        }
+    }
+
+    @Trigger(name = "users", id = "core.general.users")
+    public static class console_users extends ConsoleCommand {
+
+        @Override
+        public String exec(String trigger, String args) {
+            String[] parts = args == null ? new String[0] : args.trim().split("\\s+", 3);
+            
+            if (parts.length != 3) {
+                return docs();
+            }
+            
+            UserManager manager;
+            
+            if (parts[1].equalsIgnoreCase("global")) {
+                manager = UserManager.get(null);
+            } else {
+                SocPuppet bot = null;
+                
+                for (SocPuppet b : App.getBots().values()) {
+                    if (b.getConfig().getConfigName().equalsIgnoreCase(parts[1])) {
+                        bot = b;
+                    }
+                }
+                
+                if (bot == null) {
+                    return "No connection named " + parts[1];
+                }
+                
+                manager = UserManager.get(bot);
+            }
+            
+            if (manager == null) {
+                return "Could not open the user database.";
+            }
+            
+            File file = new File(parts[2]);
+            
+            try {
+                if (parts[0].equalsIgnoreCase("export")) {
+                    return "Exported " + UserTransfer.export(manager, file);
+                } else if (parts[0].equalsIgnoreCase("import")) {
+                    return "Imported " + UserTransfer.importFrom(manager, file);
+                }
+            } catch (IOException | SQLException ex) {
+                Logger.getLogger(SocBotCore.class.getName()).log(Level.SEVERE, null, ex);
+                return "Failed: " + ex.getMessage();
+            }
+            
+            return docs();
+        }
+
+        @Override
+        public String docs() {
+            return "users <import|export> <connection|global> <file> - Copies"
+                    + " registrations to or from a file, one per line.";
+        }
+    }
+
     @Trigger(name = "pong", id = "core.general.pong")
     @Permission(node = "core.general.pong", defaultTo = Permission.DefaultTo.ALLOW)
     public static class pong extends AbstractTrigger {
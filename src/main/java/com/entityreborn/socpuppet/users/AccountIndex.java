@@ -0,0 +1,166 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Jason Unger <entityreborn@gmail.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.entityreborn.socpuppet.users;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * In-memory directory of every account in one user database, along with
+ * each account's auto-login hostmasks. Since it holds every account, a miss
+ * means there is no such account or no matching mask, and unregistered
+ * users never cause a database query. It must be told about every
+ * registration, deletion and mask change.
+ *
+ * @author Jason Unger <entityreborn@gmail.com>
+ */
+class AccountIndex {
+    // username -> masks
+    private final Map<String, Set<String>> byUser = new HashMap<>();
+    // mask -> usernames
+    private final Map<String, Set<String>> byMask = new HashMap<>();
+
+    synchronized void load(Iterator<RegisteredUser> users) {
+        byUser.clear();
+        byMask.clear();
+
+        while (users.hasNext()) {
+            RegisteredUser user = users.next();
+            putLocked(user.getUsername(), user.getAuthMasks());
+        }
+    }
+
+    synchronized void put(String username, Collection<String> masks) {
+        removeLocked(username);
+        putLocked(username, masks);
+    }
+
+    synchronized void addMask(String username, String mask) {
+        String key = username.toLowerCase();
+        Set<String> masks = byUser.get(key);
+
+        if (masks == null) {
+            masks = new HashSet<>();
+            byUser.put(key, masks);
+        }
+
+        masks.add(mask);
+        link(mask, key);
+    }
+
+    synchronized void removeMask(String username, String mask) {
+        String key = username.toLowerCase();
+        Set<String> masks = byUser.get(key);
+
+        if (masks != null) {
+            masks.remove(mask);
+        }
+
+        unlink(mask, key);
+    }
+
+    synchronized void remove(String username) {
+        removeLocked(username);
+    }
+
+    /**
+     * @param username
+     * @return true if the given account exists in this database.
+     */
+    synchronized boolean hasAccount(String username) {
+        return byUser.containsKey(username.toLowerCase());
+    }
+
+    /**
+     * @param username
+     * @param mask
+     * @return true if the given account may auto-login from the given mask.
+     */
+    synchronized boolean matches(String username, String mask) {
+        Set<String> users = byMask.get(mask);
+
+        if (users == null) {
+            return false;
+        }
+
+        return users.contains(username.toLowerCase());
+    }
+
+    private void putLocked(String username, Collection<String> masks) {
+        String key = username.toLowerCase();
+        Set<String> copy = new HashSet<>();
+
+        for (String mask : masks) {
+            if (mask == null || mask.isEmpty()) {
+                continue;
+            }
+
+            copy.add(mask);
+            link(mask, key);
+        }
+
+        byUser.put(key, copy);
+    }
+
+    private void removeLocked(String username) {
+        String key = username.toLowerCase();
+        Set<String> masks = byUser.remove(key);
+
+        if (masks == null) {
+            return;
+        }
+
+        for (String mask : masks) {
+            unlink(mask, key);
+        }
+    }
+
+    private void link(String mask, String key) {
+        Set<String> users = byMask.get(mask);
+
+        if (users == null) {
+            users = new HashSet<>();
+            byMask.put(mask, users);
+        }
+
+        users.add(key);
+    }
+
+    private void unlink(String mask, String key) {
+        Set<String> users = byMask.get(mask);
+
+        if (users != null) {
+            users.remove(key);
+
+            if (users.isEmpty()) {
+                byMask.remove(mask);
+            }
+        }
+    }
+}
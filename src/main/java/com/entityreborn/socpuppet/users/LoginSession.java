@@ -0,0 +1,69 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Jason Unger <entityreborn@gmail.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.entityreborn.socpuppet.users;
+
+/**
+ * A logged in IRC user's binding to their registration. Holds on to the
+ * RegisteredUser so that permission checks don't have to go back to the
+ * database, until the registration is changed or the user changes nick.
+ *
+ * @author Jason Unger <entityreborn@gmail.com>
+ */
+public final class LoginSession {
+    private final String loginName;
+    private final String nick;
+    private final long revision;
+    private final RegisteredUser user;
+
+    LoginSession(String nick, RegisteredUser user, long revision) {
+        this.loginName = user.getUsername();
+        this.nick = nick;
+        this.revision = revision;
+        this.user = user;
+    }
+
+    public String getLoginName() {
+        return loginName;
+    }
+
+    /**
+     * @return the nick the user had when they logged in.
+     */
+    public String getNick() {
+        return nick;
+    }
+
+    public RegisteredUser getUser() {
+        return user;
+    }
+
+    /**
+     * @return true if the registration was changed or deleted since this
+     * session was created.
+     */
+    public boolean isStale() {
+        return UserManager.getRevision(loginName) != revision;
+    }
+}
@@ -0,0 +1,193 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Jason Unger <entityreborn@gmail.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.entityreborn.socpuppet.users;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * A user's permission nodes, split on '.' into a tree so that a check walks
+ * the queried node once without building any strings.
+ * <p>
+ * Resolution order matches the flat set it replaces: a global "*" grant
+ * wins, then an exact grant or denial of the node, then the nearest parent
+ * wildcard ("a.b.*" before "a.*"). Grants win over denials at the same
+ * level.
+ *
+ * @author Jason Unger <entityreborn@gmail.com>
+ */
+final class PermissionTrie {
+    private static final Node[] NO_CHILDREN = new Node[0];
+
+    private static final class Node {
+        final String segment;
+        Node[] children = NO_CHILDREN;
+
+        // The grant strings as stored on the user, or null if not present.
+        String exactAllow;
+        String exactDeny;
+        String wildAllow;
+        String wildDeny;
+
+        Node(String segment) {
+            this.segment = segment;
+        }
+
+        Node child(String seg) {
+            for (Node n : children) {
+                if (n.segment.equals(seg)) {
+                    return n;
+                }
+            }
+
+            Node n = new Node(seg);
+            children = Arrays.copyOf(children, children.length + 1);
+            children[children.length - 1] = n;
+
+            return n;
+        }
+
+        Node find(String perm, int start, int end) {
+            int len = end - start;
+
+            for (Node n : children) {
+                if (n.segment.length() == len
+                        && perm.regionMatches(true, start, n.segment, 0, len)) {
+                    return n;
+                }
+            }
+
+            return null;
+        }
+
+        String exact() {
+            return exactAllow != null ? exactAllow : exactDeny;
+        }
+
+        String wild() {
+            return wildAllow != null ? wildAllow : wildDeny;
+        }
+    }
+
+    private final Node root = new Node("");
+
+    PermissionTrie(Collection<String> perms) {
+        for (String perm : perms) {
+            add(perm);
+        }
+    }
+
+    private void add(String grant) {
+        if (grant == null || grant.isEmpty()) {
+            return;
+        }
+
+        String perm = grant.toLowerCase();
+        boolean deny = perm.startsWith("-");
+
+        if (deny) {
+            perm = perm.substring(1);
+        }
+
+        if (perm.equals("*")) {
+            if (!deny) {
+                root.wildAllow = grant;
+            }
+
+            return;
+        }
+
+        boolean wild = perm.endsWith(".*");
+
+        if (wild) {
+            perm = perm.substring(0, perm.length() - 2);
+        }
+
+        Node node = root;
+
+        for (String seg : perm.split("\\.")) {
+            node = node.child(seg);
+        }
+
+        if (wild) {
+            if (deny) {
+                node.wildDeny = grant;
+            } else {
+                node.wildAllow = grant;
+            }
+        } else {
+            if (deny) {
+                node.exactDeny = grant;
+            } else {
+                node.exactAllow = grant;
+            }
+        }
+    }
+
+    /**
+     * Find the grant that decides the given node.
+     *
+     * @param perm the node to check, in any case.
+     * @return the stored grant (possibly a "-" denial), or null if nothing
+     * applies.
+     */
+    String resolve(String perm) {
+        if (root.wildAllow != null) {
+            return root.wildAllow;
+        }
+
+        Node node = root;
+        String wildcard = null;
+        int len = perm.length();
+        int start = 0;
+
+        while (true) {
+            int dot = perm.indexOf('.', start);
+            int end = dot == -1 ? len : dot;
+
+            Node next = node.find(perm, start, end);
+
+            if (next == null) {
+                // Everything walked so far is a parent of the node.
+                return wildcard;
+            }
+
+            if (dot == -1) {
+                String exact = next.exact();
+
+                return exact != null ? exact : wildcard;
+            }
+
+            String wild = next.wild();
+
+            if (wild != null) {
+                wildcard = wild;
+            }
+
+            node = next;
+            start = dot + 1;
+        }
+    }
+}
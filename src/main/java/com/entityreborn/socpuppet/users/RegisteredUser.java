@@ -27,11 +27,12 @@ package com.entityreborn.socpuppet.users;
 import com.entityreborn.socpuppet.extensions.annotations.Permission;
 import com.entityreborn.socpuppet.extensions.annotations.Permission.DefaultTo;
 import com.entityreborn.socpuppet.util.Password;
-import com.entityreborn.socpuppet.util.StringSetType;
 import com.j256.ormlite.field.DataType;
 import com.j256.ormlite.field.DatabaseField;
 import com.j256.ormlite.misc.BaseDaoEnabled;
 import com.j256.ormlite.table.DatabaseTable;
+import java.sql.SQLException;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashSet;
@@ -43,21 +44,32 @@ import java.util.Set;
  */
 @DatabaseTable(tableName = "users")
 public class RegisteredUser extends BaseDaoEnabled {
-    @DatabaseField(generatedId = true)
+    public static final String ID = "id";
+    public static final String USERNAME_LOWER = "username_lower";
+    public static final String USERNAME_LOWER_INDEX = "users_username_lower_idx";
+    
+    @DatabaseField(columnName = ID, generatedId = true)
     private long id;
     @DatabaseField(unique = true)
     private String username;
+    @DatabaseField(columnName = USERNAME_LOWER, uniqueIndexName = USERNAME_LOWER_INDEX)
+    private String usernameLower;
     @DatabaseField
     private String password;
     @DatabaseField
     private String email;
     @DatabaseField(dataType = DataType.DATE_LONG)
     private Date regDate;
-    @DatabaseField(defaultValue = "", persisterClass = StringSetType.class)
+    // Stored in the user_perms and user_masks tables, loaded by UserManager.
     private final HashSet<String> perms;
-    @DatabaseField(defaultValue = "", persisterClass = StringSetType.class)
     private final HashSet<String> autoAuthMasks;
     
+    private UserManager manager;
+    private volatile PermissionTrie permTrie;
+    // False while perms and masks are still in the database, for
+    // registrations enumerated without them.
+    private volatile boolean grantsLoaded = true;
+    
     public RegisteredUser() {
         perms = new HashSet<>();
         autoAuthMasks = new HashSet<>();
@@ -72,6 +84,85 @@ public class RegisteredUser extends BaseDaoEnabled {
         perms = new HashSet<>();
         autoAuthMasks = new HashSet<>();
     }
+    /**
+     * @return the manager this registration was loaded through, or null.
+     */
+    public UserManager getManager() {
+        return manager;
+    }
+    
+    void setManager(UserManager manager) {
+        this.manager = manager;
+    }
+    
+    long getId() {
+        return id;
+    }
+    
+    /**
+     * Leave perms and masks to be loaded on first use.
+     */
+    void deferGrants() {
+        grantsLoaded = false;
+    }
+    
+    boolean hasLoadedGrants() {
+        return grantsLoaded;
+    }
+    
+    private void ensureGrants() {
+        if (!grantsLoaded && manager != null) {
+            manager.loadDeferredGrants(this);
+        }
+    }
+    
+    /**
+     * Save this registration in the background, through the owning
+     * manager's write-behind queue. Falls back to an immediate update if
+     * this registration wasn't loaded through a manager.
+     * @throws SQLException 
+     */
+    public void queueUpdate() throws SQLException {
+        if (manager != null) {
+            manager.queueUpdate(this);
+        } else {
+            update();
+        }
+    }
+    
+    @Override
+    public int update() throws SQLException {
+        int retn = super.update();
+        
+        if (manager != null) {
+            manager.saveGrants(this);
+            manager.updated(this);
+        }
+        
+        UserManager.touch(username);
+        
+        return retn;
+    }
+    
+    /**
+     * Delete this registration. If it was loaded through a manager, this
+     * goes through the manager, so its in-memory account list is updated
+     * too.
+     * @return
+     * @throws SQLException 
+     */
+    @Override
+    public int delete() throws SQLException {
+        if (manager != null) {
+            return manager.delete(this);
+        }
+        
+        int retn = super.delete();
+        UserManager.touch(username);
+        
+        return retn;
+    }
+    
     /**
      * @return the username
      */
@@ -84,6 +175,7 @@ public class RegisteredUser extends BaseDaoEnabled {
      */
     public final void setUsername(String username) {
         this.username = username;
+        this.usernameLower = username == null ? null : username.toLowerCase();
     }
 
     /**
@@ -100,6 +192,13 @@ public class RegisteredUser extends BaseDaoEnabled {
     public final void setPassword(String password) throws Exception {
         this.password = Password.getSaltedHash(password);
     }
+    
+    /**
+     * @param hash an already hashed password, as from getPasswordHash.
+     */
+    void setPasswordHash(String hash) {
+        this.password = hash;
+    }
 
     /**
      * @return the email
@@ -122,6 +221,10 @@ public class RegisteredUser extends BaseDaoEnabled {
         return regDate;
     }
     
+    void setRegDate(Date regDate) {
+        this.regDate = regDate;
+    }
+    
     /**
      * Checks if user has a permission node. Will traverse down nodes,
      * in the case of using wildcard permissions.
@@ -143,41 +246,20 @@ public class RegisteredUser extends BaseDaoEnabled {
     }
     
     public boolean hasExactPerm(String perm) {
+        ensureGrants();
+        
         return perms.contains(perm.toLowerCase());
     }
     
+    /**
+     * Find the grant that decides a permission node, such as "a.b.*" for
+     * "a.b.c".
+     * @param perm
+     * @return the grant, prefixed with "-" if it's a denial, or null if
+     * nothing applies.
+     */
     public String getRelativePerm(String perm) {
-        perm = perm.toLowerCase();
-        
-        if (perms.contains("*")) {
-            return "*";
-        }
-        
-        if (perms.contains(perm)) {
-            return perm;
-        }
-        
-        if (perms.contains("-" + perm)) {
-            return "-" + perm;
-        }
-        
-        int index = perm.lastIndexOf(".");
-        
-        while (index != -1) {
-            perm = perm.substring(0, index);
-            
-            if (perms.contains(perm + ".*")) {
-                return perm + ".*";
-            }
-            
-            if (perms.contains("-" + perm + ".*")) {
-                return "-" + perm + ".*";
-            }
-            
-            index = perm.lastIndexOf(".");
-        }
-        
-        return null;
+        return getPermTrie().resolve(perm);
     }
     
     /**
@@ -188,37 +270,29 @@ public class RegisteredUser extends BaseDaoEnabled {
      * @return True if assigned, False if denied, and def if not assigned.
      */
     public Boolean hasPerm(String perm, Boolean def) {
-        perm = perm.toLowerCase();
-        
-        if (perms.contains("*")) {
-            return true;
-        }
-        
-        if (perms.contains(perm)) {
-            return true;
-        }
+        String grant = getPermTrie().resolve(perm);
         
-        if (perms.contains("-" + perm)) {
-            return true;
+        if (grant == null) {
+            return def;
         }
         
-        int index = perm.lastIndexOf(".");
+        return grant.charAt(0) != '-';
+    }
+    
+    private PermissionTrie getPermTrie() {
+        ensureGrants();
+        PermissionTrie trie = permTrie;
         
-        while (index != -1) {
-            perm = perm.substring(0, index);
-            
-            if (perms.contains(perm + ".*")) {
-                return true;
+        // Built lazily, as perms are filled in after the row is loaded.
+        if (trie == null) {
+            synchronized (perms) {
+                trie = new PermissionTrie(perms);
             }
             
-            if (perms.contains("-" + perm + ".*")) {
-                return false;
-            }
-            
-            index = perm.lastIndexOf(".");
+            permTrie = trie;
         }
         
-        return def;
+        return trie;
     }
     
     public void addPerm(String perm) {
@@ -230,7 +304,12 @@ public class RegisteredUser extends BaseDaoEnabled {
             perm = "-" + perm;
         }
         
-        perms.add(perm.toLowerCase());
+        ensureGrants();
+        
+        synchronized (perms) {
+            perms.add(perm.toLowerCase());
+            permTrie = new PermissionTrie(perms);
+        }
     }
 
     /**
@@ -238,30 +317,95 @@ public class RegisteredUser extends BaseDaoEnabled {
      * @param perm
      */
     public void removePerm(String perm) {
-        perms.remove(perm);
-        perms.remove("-" + perm);
+        ensureGrants();
+        
+        synchronized (perms) {
+            perms.remove(perm);
+            perms.remove("-" + perm);
+            permTrie = new PermissionTrie(perms);
+        }
     }
     
     /**
      * @return the permissions
      */
     public Set<String> getPerms() {
+        ensureGrants();
+        
         return Collections.unmodifiableSet(perms);
     }
     
     public Set<String> getAuthMasks() {
+        ensureGrants();
+        
         return Collections.unmodifiableSet(autoAuthMasks);
     }
     
+    /**
+     * Replace the perms and masks with those loaded from the database.
+     * @param perms
+     * @param masks 
+     */
+    void setGrants(Collection<String> perms, Collection<String> masks) {
+        synchronized (this.perms) {
+            this.perms.clear();
+            this.perms.addAll(perms);
+            permTrie = null;
+        }
+        
+        synchronized (autoAuthMasks) {
+            autoAuthMasks.clear();
+            autoAuthMasks.addAll(masks);
+        }
+        
+        grantsLoaded = true;
+    }
+    
+    Set<String> copyPerms() {
+        ensureGrants();
+        
+        synchronized (perms) {
+            return new HashSet<>(perms);
+        }
+    }
+    
+    Set<String> copyAuthMasks() {
+        ensureGrants();
+        
+        synchronized (autoAuthMasks) {
+            return new HashSet<>(autoAuthMasks);
+        }
+    }
+    
     public void addAuthMask(String mask) {
-        if (!autoAuthMasks.contains(mask)) {
-            autoAuthMasks.add(mask);
+        boolean added;
+        
+        ensureGrants();
+        
+        synchronized (autoAuthMasks) {
+            added = autoAuthMasks.add(mask);
+        }
+        
+        if (added) {
+            if (manager != null) {
+                manager.maskAdded(this, mask);
+            }
         }
     }
     
     public void removeAuthMask(String mask) {
-        if (autoAuthMasks.contains(mask)) {
-            autoAuthMasks.remove(mask);
+        boolean removed;
+        
+        ensureGrants();
+        
+        synchronized (autoAuthMasks) {
+            removed = autoAuthMasks.remove(mask);
+        }
+        
+        if (removed) {
+            if (manager != null) {
+                manager.maskRemoved(this, mask);
+            }
         }
     }
 }
@@ -31,6 +31,7 @@ import com.entityreborn.socpuppet.SocPuppet;
 import com.entityreborn.socpuppet.users.UserException.IncorrectPassword;
 import com.entityreborn.socpuppet.users.UserException.UnknownUser;
 import com.entityreborn.socpuppet.util.Password;
+import java.sql.SQLException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -46,7 +47,7 @@ public class SocPuppetUser extends User {
         }
     }
     
-    private String loginName = "";
+    private volatile LoginSession session = null;
     
     public SocPuppetUser(String userline, SocBot b) {
         super(userline, b);
@@ -63,10 +64,27 @@ public class SocPuppetUser extends User {
      */
     public boolean attemptLogin(String name, String password) throws IncorrectPassword, UnknownUser, Exception {
         UserManager manager = UserManager.get((SocPuppet) getBot());
+        long revision = UserManager.getRevision(name);
         RegisteredUser user = manager.getUser(name);
         
         if (Password.check(password, user.getPasswordHash())) {
-            loginName = name;
+            if (Password.needsRehash(user.getPasswordHash())) {
+                // Made with older settings; we have the password now, so
+                // bring it up to the current cost.
+                user.setPassword(password);
+                
+                try {
+                    user.queueUpdate();
+                } catch (SQLException ex) {
+                    // Undone; the old hash still works, so log in anyway.
+                    Logger.getLogger(SocPuppetUser.class.getName())
+                            .log(Level.WARNING, "Could not save rehashed password for " + name, ex);
+                }
+                
+                revision = UserManager.getRevision(name);
+            }
+            
+            session = new LoginSession(getName(), user, revision);
             return true;
         } else {
             return false;
@@ -75,6 +93,14 @@ public class SocPuppetUser extends User {
     
     public boolean attemptHostmaskLogin() {
         UserManager manager = UserManager.get((SocPuppet) getBot());
+        
+        // Answered from memory, so chatter from unregistered users never
+        // reaches the database.
+        if (!manager.matchesHostmask(getName(), getHostmask())) {
+            return false;
+        }
+        
+        long revision = UserManager.getRevision(getName());
         RegisteredUser user;
         
         try {
@@ -84,7 +110,7 @@ public class SocPuppetUser extends User {
         }
         
         if (user.getAuthMasks().contains(getHostmask())) {
-            loginName = user.getUsername();
+            session = new LoginSession(getName(), user, revision);
             return true;
         } else {
             return false;
@@ -92,24 +118,66 @@ public class SocPuppetUser extends User {
     }
     
     /**
-     * Return the registration instance for this user.
+     * Forget this user's login.
+     */
+    public void logout() {
+        session = null;
+    }
+    
+    public boolean isLoggedIn() {
+        return getSession() != null;
+    }
+    
+    /**
+     * Return the current login session, dropping it if the user has since
+     * changed nick.
+     * @return the session, or null if the user isn't logged in.
+     */
+    public LoginSession getSession() {
+        LoginSession current = session;
+        
+        if (current == null) {
+            return null;
+        }
+        
+        if (!current.getNick().equalsIgnoreCase(getName())) {
+            session = null;
+            return null;
+        }
+        
+        return current;
+    }
+    
+    /**
+     * Return the registration instance for this user. Only goes to the
+     * database if the registration changed since it was last fetched.
      * @return instance of RegisteredUser, or null if the user isn't logged in.
      */
     public RegisteredUser getRegistration() {
-        if ("".equals(loginName)) {
+        LoginSession current = getSession();
+        
+        if (current == null) {
             return null;
         }
         
+        if (!current.isStale()) {
+            return current.getUser();
+        }
+        
         UserManager manager = UserManager.get((SocPuppet) getBot());
+        long revision = UserManager.getRevision(current.getLoginName());
         RegisteredUser user;
         
         try {
-            user = manager.getUser(loginName);
+            user = manager.getUser(current.getLoginName());
         } catch (UnknownUser ex) {
-            Logger.getLogger(SocPuppetUser.class.getName()).log(Level.SEVERE, null, ex);
+            // Deleted out from under us.
+            session = null;
             return null;
         }
         
+        session = new LoginSession(current.getNick(), user, revision);
+        
         return user;
     }
 }
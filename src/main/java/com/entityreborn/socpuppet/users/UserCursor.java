@@ -0,0 +1,164 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Jason Unger <entityreborn@gmail.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.entityreborn.socpuppet.users;
+
+import java.io.Closeable;
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Walks a user database in id order, a page at a time. Each page is read
+ * with its own short query (WHERE id > last ORDER BY id LIMIT n), so no
+ * connection or read transaction is held between pages, and only one page
+ * is in memory at once.
+ * <p>
+ * A cursor may cover several databases in turn, such as the global one
+ * and then a connection's own. A user is then only returned from the first
+ * database that has them, the same precedence as UserManager.getUser.
+ * <p>
+ * If a page can't be read, hasNext throws a CursorException rather than
+ * ending early, so a partial walk is never mistaken for a complete one.
+ *
+ * @author Jason Unger <entityreborn@gmail.com>
+ */
+public final class UserCursor implements Iterator<RegisteredUser>, Closeable {
+    /**
+     * Thrown when a page of users couldn't be read. The cursor is closed.
+     */
+    public static class CursorException extends RuntimeException {
+        public CursorException(SQLException cause) {
+            super(cause);
+        }
+
+        @Override
+        public synchronized SQLException getCause() {
+            return (SQLException) super.getCause();
+        }
+    }
+
+    private final List<UserManager> managers;
+    private final boolean withGrants;
+    private final int pageSize;
+    private int current = 0;
+    // Which database the current page came from.
+    private int pageSource = 0;
+    private Iterator<RegisteredUser> page = Collections.emptyIterator();
+    private RegisteredUser upcoming = null;
+    private long lastId = -1;
+    private boolean exhausted = false;
+
+    UserCursor(List<UserManager> managers, boolean withGrants, int pageSize) {
+        this.managers = managers;
+        this.withGrants = withGrants;
+        this.pageSize = pageSize;
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (upcoming == null) {
+            while (!page.hasNext() && !exhausted) {
+                fetch();
+            }
+
+            if (!page.hasNext()) {
+                return false;
+            }
+
+            RegisteredUser user = page.next();
+
+            if (!isShadowed(user)) {
+                upcoming = user;
+            }
+        }
+
+        return true;
+    }
+
+    @Override
+    public RegisteredUser next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+
+        RegisteredUser user = upcoming;
+        upcoming = null;
+
+        return user;
+    }
+
+    /**
+     * @return true if an earlier database has a user by the same name.
+     */
+    private boolean isShadowed(RegisteredUser user) {
+        for (int i = 0; i < pageSource; i++) {
+            if (managers.get(i).hasAccount(user.getUsername())) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private void fetch() {
+        List<RegisteredUser> users;
+        pageSource = current;
+
+        try {
+            users = managers.get(current).fetchPage(lastId, pageSize, withGrants);
+        } catch (SQLException ex) {
+            close();
+            throw new CursorException(ex);
+        }
+
+        if (users.size() < pageSize) {
+            // On to the next database, if any.
+            current++;
+            lastId = -1;
+            exhausted = current >= managers.size();
+        } else {
+            lastId = users.get(users.size() - 1).getId();
+        }
+
+        page = users.iterator();
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Stop early. Safe to call more than once.
+     */
+    @Override
+    public void close() {
+        exhausted = true;
+        upcoming = null;
+        page = Collections.emptyIterator();
+    }
+}
@@ -28,16 +28,39 @@ import com.entityreborn.socpuppet.SocPuppet;
 import com.entityreborn.socpuppet.users.UserException.UnknownUser;
 import com.entityreborn.socpuppet.users.UserException.UserExists;
 import com.entityreborn.socpuppet.users.UserException.UserRegistrationException;
+import com.entityreborn.socpuppet.util.SqliteConnectionSource;
+import com.entityreborn.socpuppet.util.StringSetType;
+import com.j256.ormlite.dao.CloseableIterator;
 import com.j256.ormlite.dao.Dao;
 import com.j256.ormlite.dao.DaoManager;
-import com.j256.ormlite.jdbc.JdbcConnectionSource;
+import com.j256.ormlite.dao.GenericRawResults;
+import com.j256.ormlite.stmt.DeleteBuilder;
+import com.j256.ormlite.stmt.PreparedQuery;
+import com.j256.ormlite.stmt.QueryBuilder;
+import com.j256.ormlite.stmt.SelectArg;
 import com.j256.ormlite.table.TableUtils;
 import java.io.File;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -46,11 +69,44 @@ import java.util.logging.Logger;
  * @author Jason Unger <entityreborn@gmail.com>
  */
 public class UserManager {
-    private static final Map<String, UserManager> managers = new HashMap<>();
-    private JdbcConnectionSource source;
+    // Each manager is opened once by whichever thread asks first; others
+    // asking for the same one wait on the same task.
+    private static final ConcurrentMap<String, FutureTask<UserManager>> managers = new ConcurrentHashMap<>();
+    // Bumped whenever a registration is changed, so login sessions know
+    // when their cached copy is out of date.
+    private static final ConcurrentMap<String, Long> revisions = new ConcurrentHashMap<>();
+    private SqliteConnectionSource source;
     private Dao<RegisteredUser, String> dao;
+    private Dao<UserPerm, Long> permDao;
+    private Dao<UserMask, Long> maskDao;
     private final SocPuppet bot;
     private String identifier = null;
+    private final AccountIndex accounts = new AccountIndex();
+    private PreparedQuery<RegisteredUser> byName;
+    private final SelectArg byNameArg = new SelectArg();
+    // Users per page when iterating. Kept under SQLite's limit on bound
+    // parameters, as each page's grants are fetched with an IN list.
+    private static final int PAGE_SIZE = 500;
+    
+    // Write-behind queue: changed registrations waiting to be written, one
+    // entry per user, flushed together in a single transaction.
+    private final Map<String, RegisteredUser> pending = new LinkedHashMap<>();
+    private final Object flushLock = new Object();
+    // Flushes in a row that a user's change has failed to write, guarded by
+    // flushLock. After MAX_WRITE_ATTEMPTS the change is given up on, so one
+    // bad row can't hold up everyone else's forever.
+    private final Map<String, Integer> writeFailures = new HashMap<>();
+    private static final int MAX_WRITE_ATTEMPTS = 3;
+    private static volatile long flushInterval = 5000;
+    private static volatile int flushBatch = 100;
+    private static ScheduledExecutorService writer;
+    
+    // Directory mode: every registration is kept in memory, so lookups
+    // never go to the database. Changes are written through rather than
+    // queued, and undone in memory if that fails, so the directory never
+    // lists a change that isn't on disk.
+    private static volatile boolean directoryMode = false;
+    private ConcurrentMap<String, RegisteredUser> directory;
 
     /**
      * Get a specific user registration manager for a given bot instance.
@@ -58,10 +114,9 @@ public class UserManager {
      * @param bot
      * @return 
      */
-    public static UserManager get(SocPuppet bot) {
-        UserManager manager;
-        String identifier;
-        File configDir;
+    public static UserManager get(final SocPuppet bot) {
+        final String identifier;
+        final File configDir;
         
         if (bot != null) {
             identifier = bot.getConfig().getConfigName();
@@ -71,31 +126,350 @@ public class UserManager {
             configDir = new File("conf");
         }
         
-        if (!managers.containsKey(identifier.toLowerCase())) {
-            try {
-                
-                manager = new UserManager(bot);
-                manager.identifier = identifier;
+        String key = identifier.toLowerCase();
+        FutureTask<UserManager> task = managers.get(key);
+        
+        if (task == null) {
+            FutureTask<UserManager> created = new FutureTask<>(new Callable<UserManager>() {
+                @Override
+                public UserManager call() {
+                    return open(bot, identifier, configDir);
+                }
+            });
+            
+            task = managers.putIfAbsent(key, created);
+            
+            if (task == null) {
+                task = created;
+                task.run();
+            }
+        }
+        
+        UserManager manager;
+        
+        try {
+            manager = task.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException ex) {
+            Logger.getLogger(UserManager.class.getName())
+                    .log(Level.SEVERE, null, ex.getCause());
+            manager = null;
+        }
+        
+        if (manager == null) {
+            // Let a later call try again.
+            managers.remove(key, task);
+        }
+        
+        return manager;
+    }
+    
+    private static UserManager open(SocPuppet bot, String identifier, File configDir) {
+        try {
+            UserManager manager = new UserManager(bot);
+            manager.identifier = identifier;
+            
+            configDir.mkdirs();
+            
+            File dbFile = new File(configDir, identifier.toLowerCase() + "-users.db");
+            
+            manager.source = SqliteConnectionSource.get(dbFile);
+            manager.dao = DaoManager.createDao(manager.source, RegisteredUser.class);
+            manager.permDao = DaoManager.createDao(manager.source, UserPerm.class);
+            manager.maskDao = DaoManager.createDao(manager.source, UserMask.class);
+
+            TableUtils.createTableIfNotExists(manager.source, RegisteredUser.class);
+            TableUtils.createTableIfNotExists(manager.source, UserPerm.class);
+            TableUtils.createTableIfNotExists(manager.source, UserMask.class);
+            manager.migrate();
+            manager.migrateGrants();
+            
+            manager.byName = manager.dao.queryBuilder().where()
+                    .eq(RegisteredUser.USERNAME_LOWER, manager.byNameArg).prepare();
+            
+            if (directoryMode) {
+                manager.directory = new ConcurrentHashMap<>();
                 
-                managers.put(identifier.toLowerCase(), manager);
+                try (UserCursor users = manager.iterateUsers(true)) {
+                    while (users.hasNext()) {
+                        RegisteredUser user = users.next();
+                        manager.directory.put(user.getUsername().toLowerCase(), user);
+                    }
+                }
                 
-                configDir.mkdirs();
+                manager.accounts.load(manager.directory.values().iterator());
+            } else {
+                try (UserCursor users = manager.iterateUsers(true)) {
+                    manager.accounts.load(users);
+                }
+            }
+            
+            startWriter();
+            
+            return manager;
+        } catch (SQLException ex) {
+            Logger.getLogger(RegisteredUser.class.getName())
+                    .log(Level.SEVERE, null, ex);
+            return null;
+        } catch (UserCursor.CursorException ex) {
+            Logger.getLogger(RegisteredUser.class.getName())
+                    .log(Level.SEVERE, null, ex.getCause());
+            return null;
+        }
+    }
+    
+    /**
+     * Open the global database and those of the given bots, in parallel,
+     * so that the first message from each connection doesn't have to wait
+     * for its database to be opened and migrated.
+     * @param bots 
+     */
+    public static void openAll(Collection<SocPuppet> bots) {
+        List<Callable<UserManager>> tasks = new ArrayList<>();
+        List<SocPuppet> all = new ArrayList<>();
+        
+        all.add(null);
+        all.addAll(bots);
+        
+        for (final SocPuppet bot : all) {
+            tasks.add(new Callable<UserManager>() {
+                @Override
+                public UserManager call() {
+                    return get(bot);
+                }
+            });
+        }
+        
+        int threads = Math.max(1, Math.min(tasks.size(),
+                Runtime.getRuntime().availableProcessors()));
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        
+        try {
+            pool.invokeAll(tasks);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } finally {
+            pool.shutdown();
+        }
+    }
+    
+    /**
+     * @return every manager that has finished opening.
+     */
+    private static List<UserManager> getOpenManagers() {
+        List<UserManager> open = new ArrayList<>();
+        
+        for (FutureTask<UserManager> task : managers.values()) {
+            if (!task.isDone()) {
+                continue;
+            }
+            
+            try {
+                UserManager manager = task.get();
                 
-                File dbFile = new File(configDir, identifier.toLowerCase() + "-users.db");
-                String url = "jdbc:sqlite:" + dbFile.getPath();
+                if (manager != null) {
+                    open.add(manager);
+                }
+            } catch (InterruptedException | ExecutionException ex) {
+                // Failed to open; nothing to flush.
+            }
+        }
+        
+        return open;
+    }
+    
+    /**
+     * Stop the background writer, write out everything still queued and
+     * forget every manager. Changes queued from here on are written
+     * straight away. Connection sources are closed separately, by
+     * SqliteConnectionSource.closeAll.
+     */
+    public static void shutdown() {
+        ScheduledExecutorService stopping;
+        
+        synchronized (UserManager.class) {
+            stopping = writer;
+            writer = null;
+        }
+        
+        if (stopping != null) {
+            stopping.shutdown();
+            
+            try {
+                stopping.awaitTermination(5, TimeUnit.SECONDS);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        
+        // The writer is done, so this catches anything queued while it
+        // was stopping. Changes that failed get their remaining attempts
+        // now, as there's no writer left to retry them later.
+        for (int i = 0; i < MAX_WRITE_ATTEMPTS && !flushAll(); i++) {
+            // Try again.
+        }
+        
+        managers.clear();
+    }
+    
+    private static synchronized ScheduledExecutorService getWriter() {
+        return writer;
+    }
+    
+    /**
+     * Keep every registration in memory, for managers created after this
+     * call. Costs memory in proportion to the number of accounts; see
+     * estimateDirectoryBytes.
+     * @param enabled 
+     */
+    public static void setDirectoryMode(boolean enabled) {
+        directoryMode = enabled;
+    }
+    
+    /**
+     * @return every user database that is currently open.
+     */
+    public static List<UserManager> getManagers() {
+        return getOpenManagers();
+    }
+    
+    public String getIdentifier() {
+        return identifier;
+    }
+    
+    /**
+     * @return how many registrations are held in memory, or -1 if this
+     * manager isn't in directory mode.
+     */
+    public int getDirectorySize() {
+        return directory == null ? -1 : directory.size();
+    }
+    
+    /**
+     * Roughly estimate the heap used by the in-memory directory, assuming
+     * a 64-bit JVM with compressed pointers.
+     * @return the estimate in bytes, or 0 if not in directory mode.
+     */
+    public long estimateDirectoryBytes() {
+        if (directory == null) {
+            return 0;
+        }
+        
+        long bytes = 0;
+        
+        for (RegisteredUser user : directory.values()) {
+            // Map entry and key, the user, its date and two hash sets.
+            bytes += 32 + 80 + 24 + 2 * 64;
+            bytes += 2 * stringBytes(user.getUsername());
+            bytes += stringBytes(user.getPasswordHash());
+            bytes += stringBytes(user.getEmail());
+            
+            for (String perm : user.getPerms()) {
+                bytes += 32 + stringBytes(perm);
+            }
+            
+            for (String mask : user.getAuthMasks()) {
+                bytes += 32 + stringBytes(mask);
+            }
+        }
+        
+        return bytes;
+    }
+    
+    private static long stringBytes(String str) {
+        return str == null ? 0 : 40 + 2L * str.length();
+    }
+    
+    /**
+     * Keep the directory pointing at the most recently changed copy.
+     */
+    void updated(RegisteredUser user) {
+        if (directory != null) {
+            directory.put(user.getUsername().toLowerCase(), user);
+        }
+    }
+    
+    /**
+     * Set how often queued registration changes are written, and how many
+     * may queue up before a write is forced. Takes effect for managers
+     * created after this call.
+     * @param interval milliseconds between writes.
+     * @param batch 
+     */
+    public static void setWriteBehind(long interval, int batch) {
+        flushInterval = Math.max(100, interval);
+        flushBatch = Math.max(1, batch);
+    }
+    
+    private static synchronized void startWriter() {
+        if (writer != null) {
+            return;
+        }
+        
+        writer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "user-writer");
+                t.setDaemon(true);
                 
-                manager.source = new JdbcConnectionSource(url);
-                manager.dao = DaoManager.createDao(manager.source, RegisteredUser.class);
-
-                TableUtils.createTableIfNotExists(manager.source, RegisteredUser.class);
-            } catch (SQLException ex) {
-                Logger.getLogger(RegisteredUser.class.getName())
-                        .log(Level.SEVERE, null, ex);
-                return null;
+                return t;
+            }
+        });
+        
+        writer.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                flushAll();
+            }
+        }, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+    }
+    
+    /**
+     * Write out every manager's queued changes. Called periodically, which
+     * also retries changes that failed, and on shutdown so nothing is lost.
+     * @return true if nothing that was queued is left to retry.
+     */
+    public static boolean flushAll() {
+        boolean all = true;
+        
+        for (UserManager manager : getOpenManagers()) {
+            all &= manager.flush();
+        }
+        
+        return all;
+    }
+    
+    /**
+     * @param username
+     * @return the current revision of the given registration.
+     */
+    static long getRevision(String username) {
+        Long rev = revisions.get(username.toLowerCase());
+        
+        return rev == null ? 0 : rev;
+    }
+    
+    /**
+     * Mark the given registration as changed, invalidating any login
+     * sessions holding a copy of it.
+     * @param username 
+     */
+    static void touch(String username) {
+        String key = username.toLowerCase();
+        
+        while (true) {
+            Long rev = revisions.get(key);
+            
+            if (rev == null) {
+                if (revisions.putIfAbsent(key, 1L) == null) {
+                    return;
+                }
+            } else if (revisions.replace(key, rev, rev + 1)) {
+                return;
             }
         }
-
-        return managers.get(identifier.toLowerCase());
     }
     
     /**
@@ -110,38 +484,712 @@ public class UserManager {
         return bot;
     }
 
-    public boolean has(String key) {
+    private void attach(RegisteredUser user) {
+        user.setDao(dao);
+        user.setManager(this);
+    }
+    
+    /**
+     * Check if the given nick may auto-login from the given hostmask, without
+     * touching the database. Global registrations take precedence, the same
+     * as in getUser.
+     * @param nick
+     * @param hostmask
+     * @return 
+     */
+    public boolean matchesHostmask(String nick, String hostmask) {
+        UserManager owner = resolveOwner(nick);
+        
+        return owner != null && owner.accounts.matches(nick, hostmask);
+    }
+    
+    void maskAdded(RegisteredUser user, String mask) {
+        accounts.addMask(user.getUsername(), mask);
+    }
+    
+    void maskRemoved(RegisteredUser user, String mask) {
+        accounts.removeMask(user.getUsername(), mask);
+    }
+    
+    /**
+     * @return the lowercased names of the users table's columns.
+     */
+    private Set<String> getColumns() throws SQLException {
+        Set<String> names = new HashSet<>();
+        GenericRawResults<String[]> columns = dao.queryRaw("PRAGMA table_info(users)");
+        
         try {
-            return dao.countOf(dao.queryBuilder().setCountOf(true).where()
-                    .like("username", key).prepare()) != 0;
+            for (String[] column : columns) {
+                // cid, name, type, notnull, dflt_value, pk
+                names.add(column[1].toLowerCase());
+            }
+        } finally {
+            columns.close();
+        }
+        
+        return names;
+    }
+    
+    /**
+     * Bring databases created before username_lower existed up to date.
+     */
+    private void migrate() throws SQLException {
+        if (!getColumns().contains(RegisteredUser.USERNAME_LOWER)) {
+            dao.executeRaw("ALTER TABLE users ADD COLUMN "
+                    + RegisteredUser.USERNAME_LOWER + " VARCHAR");
+        }
+        
+        dao.executeRaw("UPDATE users SET " + RegisteredUser.USERNAME_LOWER
+                + " = lower(username) WHERE " + RegisteredUser.USERNAME_LOWER
+                + " IS NULL");
+        renameCaseDuplicates();
+        dao.executeRaw("CREATE UNIQUE INDEX IF NOT EXISTS "
+                + RegisteredUser.USERNAME_LOWER_INDEX + " ON users ("
+                + RegisteredUser.USERNAME_LOWER + ")");
+    }
+    
+    /**
+     * Older databases compared usernames case-sensitively, so they may hold
+     * accounts whose names differ only in case, which the unique index
+     * can't allow. The oldest of each keeps its name; the others are
+     * renamed to "name-id", which their owners can log in with.
+     */
+    private void renameCaseDuplicates() throws SQLException {
+        final List<String[]> dupes = new ArrayList<>();
+        GenericRawResults<String[]> results = dao.queryRaw("SELECT "
+                + RegisteredUser.ID + ", username, " + RegisteredUser.USERNAME_LOWER
+                + " FROM users WHERE " + RegisteredUser.USERNAME_LOWER + " IN (SELECT "
+                + RegisteredUser.USERNAME_LOWER + " FROM users GROUP BY "
+                + RegisteredUser.USERNAME_LOWER + " HAVING COUNT(*) > 1) ORDER BY "
+                + RegisteredUser.USERNAME_LOWER + ", " + RegisteredUser.ID);
+        
+        try {
+            for (String[] row : results) {
+                dupes.add(row);
+            }
+        } finally {
+            results.close();
+        }
+        
+        if (dupes.isEmpty()) {
+            return;
+        }
+        
+        try {
+            dao.callBatchTasks(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    String kept = null;
+                    
+                    for (String[] row : dupes) {
+                        if (kept == null || !kept.equals(row[2])) {
+                            // The oldest of this name.
+                            kept = row[2];
+                            continue;
+                        }
+                        
+                        String name = row[1] + "-" + row[0];
+                        
+                        for (int i = 2; dao.queryRawValue("SELECT COUNT(*) FROM users WHERE "
+                                + RegisteredUser.USERNAME_LOWER + " = ?",
+                                name.toLowerCase()) > 0; i++) {
+                            name = row[1] + "-" + row[0] + "-" + i;
+                        }
+                        
+                        dao.updateRaw("UPDATE users SET username = ?, "
+                                + RegisteredUser.USERNAME_LOWER + " = ? WHERE "
+                                + RegisteredUser.ID + " = ?",
+                                name, name.toLowerCase(), row[0]);
+                        
+                        Logger.getLogger(UserManager.class.getName()).log(Level.WARNING,
+                                "Account {0} in {1} differs only in case from an older"
+                                + " account, and was renamed to {2}",
+                                new Object[]{row[1], identifier, name});
+                    }
+                    
+                    return null;
+                }
+            });
         } catch (SQLException ex) {
-            return false;
+            throw ex;
+        } catch (Exception ex) {
+            throw new SQLException(ex);
         }
     }
-
-    public RegisteredUser getUser(String key) throws UnknownUser {
-        // Return the global user if one exists.
-        if (!identifier.equalsIgnoreCase("__global__") && UserManager.get(null).has(key)) {
-            return UserManager.get(null).getUser(key);
+    
+    /**
+     * Move perms and masks out of the CRLF-joined columns older databases
+     * kept them in, and into their own tables. The old columns are emptied
+     * in the same transaction, so this only ever happens once per row.
+     */
+    private void migrateGrants() throws SQLException {
+        Set<String> columns = getColumns();
+        
+        if (!columns.contains("perms") || !columns.contains("autoauthmasks")) {
+            return;
         }
         
-        if (!has(key)) {
-            throw new UnknownUser(key);
+        final List<String[]> rows = new ArrayList<>();
+        GenericRawResults<String[]> results = dao.queryRaw("SELECT "
+                + RegisteredUser.USERNAME_LOWER + ", perms, autoAuthMasks FROM users"
+                + " WHERE perms <> '' OR autoAuthMasks <> ''");
+        
+        try {
+            for (String[] row : results) {
+                rows.add(row);
+            }
+        } finally {
+            results.close();
         }
-
-        RegisteredUser user = null;
-
+        
+        if (rows.isEmpty()) {
+            return;
+        }
+        
         try {
-            user = dao.queryForFirst(dao.queryBuilder().where()
-                    .like("username", key).prepare());
+            dao.callBatchTasks(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    for (String[] row : rows) {
+                        for (String perm : decodeLegacy(row[1])) {
+                            permDao.create(new UserPerm(row[0], perm));
+                        }
+                        
+                        for (String mask : decodeLegacy(row[2])) {
+                            maskDao.create(new UserMask(row[0], mask));
+                        }
+                    }
+                    
+                    dao.executeRaw("UPDATE users SET perms = '', autoAuthMasks = ''");
+                    
+                    return null;
+                }
+            });
+        } catch (Exception ex) {
+            throw new SQLException("Could not migrate perms and masks", ex);
+        }
+        
+        Logger.getLogger(UserManager.class.getName()).log(Level.INFO,
+                "Moved perms and masks of {0} user(s) into their own tables",
+                rows.size());
+    }
+    
+    private static Set<String> decodeLegacy(String value) {
+        if (value == null) {
+            return Collections.emptySet();
+        }
+        
+        return StringSetType.decode(value);
+    }
+    
+    private void loadGrants(RegisteredUser user) throws SQLException {
+        String key = user.getUsername().toLowerCase();
+        List<String> perms = new ArrayList<>();
+        List<String> userMasks = new ArrayList<>();
+        
+        for (UserPerm row : permDao.queryBuilder().where()
+                .eq(UserPerm.USERNAME, new SelectArg(key)).query()) {
+            perms.add(row.getNode());
+        }
+        
+        for (UserMask row : maskDao.queryBuilder().where()
+                .eq(UserMask.USERNAME, new SelectArg(key)).query()) {
+            userMasks.add(row.getMask());
+        }
+        
+        user.setGrants(perms, userMasks);
+    }
+    
+    void loadDeferredGrants(RegisteredUser user) {
+        try {
+            loadGrants(user);
         } catch (SQLException ex) {
             Logger.getLogger(UserManager.class.getName())
                     .log(Level.SEVERE, null, ex);
         }
+    }
+    
+    /**
+     * Load perms and masks for several users with two queries.
+     */
+    private void loadGrants(List<RegisteredUser> users) throws SQLException {
+        if (users.isEmpty()) {
+            return;
+        }
+        
+        Object[] keys = new Object[users.size()];
+        
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = new SelectArg(users.get(i).getUsername().toLowerCase());
+        }
+        
+        Map<String, List<String>> perms = new HashMap<>();
+        Map<String, List<String>> userMasks = new HashMap<>();
+        
+        for (UserPerm row : permDao.queryBuilder().where()
+                .in(UserPerm.USERNAME, keys).query()) {
+            group(perms, row.getUsername()).add(row.getNode());
+        }
+        
+        for (UserMask row : maskDao.queryBuilder().where()
+                .in(UserMask.USERNAME, keys).query()) {
+            group(userMasks, row.getUsername()).add(row.getMask());
+        }
+        
+        for (RegisteredUser user : users) {
+            String key = user.getUsername().toLowerCase();
+            user.setGrants(group(perms, key), group(userMasks, key));
+        }
+    }
+    
+    /**
+     * Write a registration's perms and masks, touching only the rows that
+     * were added or removed since they were last saved.
+     * @param user
+     * @throws SQLException 
+     */
+    void saveGrants(RegisteredUser user) throws SQLException {
+        if (!user.hasLoadedGrants()) {
+            // Never looked at, so never changed.
+            return;
+        }
+        
+        String key = user.getUsername().toLowerCase();
+        Set<String> perms = user.copyPerms();
+        Set<String> userMasks = user.copyAuthMasks();
+        List<UserPerm> stalePerms = new ArrayList<>();
+        List<UserMask> staleMasks = new ArrayList<>();
+        
+        for (UserPerm row : permDao.queryBuilder().where()
+                .eq(UserPerm.USERNAME, new SelectArg(key)).query()) {
+            // Whatever is left over afterwards is new.
+            if (!perms.remove(row.getNode())) {
+                stalePerms.add(row);
+            }
+        }
+        
+        for (UserMask row : maskDao.queryBuilder().where()
+                .eq(UserMask.USERNAME, new SelectArg(key)).query()) {
+            if (!userMasks.remove(row.getMask())) {
+                staleMasks.add(row);
+            }
+        }
+        
+        if (!stalePerms.isEmpty()) {
+            permDao.delete(stalePerms);
+        }
+        
+        if (!staleMasks.isEmpty()) {
+            maskDao.delete(staleMasks);
+        }
+        
+        for (String perm : perms) {
+            permDao.create(new UserPerm(key, perm));
+        }
+        
+        for (String mask : userMasks) {
+            maskDao.create(new UserMask(key, mask));
+        }
+    }
+    
+    private void deleteGrants(RegisteredUser user) throws SQLException {
+        String key = user.getUsername().toLowerCase();
+        
+        DeleteBuilder<UserPerm, Long> perms = permDao.deleteBuilder();
+        perms.where().eq(UserPerm.USERNAME, new SelectArg(key));
+        perms.delete();
+        
+        DeleteBuilder<UserMask, Long> userMasks = maskDao.deleteBuilder();
+        userMasks.where().eq(UserMask.USERNAME, new SelectArg(key));
+        userMasks.delete();
+    }
+    
+    /**
+     * Find every user in this database holding the given grant exactly, as
+     * stored. Pass "-node" to find users denied a node.
+     * @param perm
+     * @return 
+     */
+    public List<RegisteredUser> findUsersWithPerm(String perm) {
+        try {
+            return query(dao.queryBuilder().where().in(RegisteredUser.USERNAME_LOWER,
+                    permDao.queryBuilder().selectColumns(UserPerm.USERNAME)
+                            .where().eq(UserPerm.NODE, new SelectArg(perm.toLowerCase()))
+                            .queryBuilder()).prepare());
+        } catch (SQLException ex) {
+            Logger.getLogger(UserManager.class.getName())
+                    .log(Level.SEVERE, null, ex);
+            return new ArrayList<>();
+        }
+    }
+    
+    /**
+     * Find every user in this database that may auto-login from the given
+     * hostmask.
+     * @param mask
+     * @return 
+     */
+    public List<RegisteredUser> findByMask(String mask) {
+        try {
+            return query(dao.queryBuilder().where().in(RegisteredUser.USERNAME_LOWER,
+                    maskDao.queryBuilder().selectColumns(UserMask.USERNAME)
+                            .where().eq(UserMask.MASK, new SelectArg(mask))
+                            .queryBuilder()).prepare());
+        } catch (SQLException ex) {
+            Logger.getLogger(UserManager.class.getName())
+                    .log(Level.SEVERE, null, ex);
+            return new ArrayList<>();
+        }
+    }
+    
+    private List<RegisteredUser> query(PreparedQuery<RegisteredUser> query) throws SQLException {
+        List<RegisteredUser> users = new ArrayList<>();
+        
+        for (RegisteredUser user : dao.query(query)) {
+            // Prefer a queued copy, as it's newer.
+            RegisteredUser queued = getPending(user.getUsername());
+            
+            if (queued == null && directory != null) {
+                queued = directory.get(user.getUsername().toLowerCase());
+            }
+            
+            if (queued != null) {
+                users.add(queued);
+            } else {
+                attach(user);
+                loadGrants(user);
+                users.add(user);
+            }
+        }
+        
+        return users;
+    }
+    
+    /**
+     * Look up a user in this database only, ignoring the global one.
+     * @param key the username, in any case.
+     * @return the user, or null if there is no such user.
+     */
+    public RegisteredUser findUser(String key) {
+        RegisteredUser user = getPending(key);
+        
+        if (user != null) {
+            return user;
+        }
+        
+        if (directory != null) {
+            return directory.get(key.toLowerCase());
+        }
+        
+        try {
+            synchronized (byName) {
+                byNameArg.setValue(key.toLowerCase());
+                user = dao.queryForFirst(byName);
+            }
+        } catch (SQLException ex) {
+            Logger.getLogger(UserManager.class.getName())
+                    .log(Level.SEVERE, null, ex);
+            return null;
+        }
+        
+        if (user != null) {
+            attach(user);
+            
+            try {
+                loadGrants(user);
+            } catch (SQLException ex) {
+                Logger.getLogger(UserManager.class.getName())
+                        .log(Level.SEVERE, null, ex);
+                return null;
+            }
+        }
+        
+        return user;
+    }
+    
+    public boolean has(String key) {
+        return findUser(key) != null;
+    }
+
+    /**
+     * Queue a changed registration to be written later. Changes to the same
+     * user are coalesced, and until written, getUser returns this instance.
+     * In directory mode the change is written before this returns.
+     * @param user 
+     * @throws SQLException in directory mode, if the change couldn't be
+     * written. The registration is then reloaded from the database, undoing
+     * the change in memory as well.
+     */
+    public void queueUpdate(RegisteredUser user) throws SQLException {
+        if (directory != null) {
+            writeThrough(user);
+            return;
+        }
+        
+        boolean full;
+        
+        synchronized (pending) {
+            pending.put(user.getUsername().toLowerCase(), user);
+            full = pending.size() >= flushBatch;
+        }
+        
+        ScheduledExecutorService w = getWriter();
+        
+        // Once shut down, there's no writer to do it later.
+        if (w == null) {
+            flush();
+        }
+        
+        updated(user);
+        
+        touch(user.getUsername());
+        
+        if (w != null && full) {
+            try {
+                w.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        flush();
+                    }
+                });
+            } catch (RejectedExecutionException ex) {
+                // Stopped since we looked; write it ourselves.
+                flush();
+            }
+        }
+    }
+    
+    private void writeThrough(RegisteredUser user) throws SQLException {
+        try {
+            synchronized (flushLock) {
+                write(Collections.singletonList(user));
+            }
+        } catch (Exception ex) {
+            revert(user);
+            touch(user.getUsername());
+            
+            throw ex instanceof SQLException ? (SQLException) ex : new SQLException(ex);
+        }
+        
+        updated(user);
+        touch(user.getUsername());
+    }
+    
+    /**
+     * Put a registration back the way the database has it, after a change
+     * to it couldn't be written.
+     */
+    private void revert(RegisteredUser user) {
+        try {
+            dao.refresh(user);
+            loadGrants(user);
+            accounts.put(user.getUsername(), user.getAuthMasks());
+        } catch (SQLException ex) {
+            Logger.getLogger(UserManager.class.getName()).log(Level.SEVERE,
+                    "Could not reload " + user.getUsername() + " after a failed write;"
+                    + " its unsaved change stays in memory until restart", ex);
+        }
+    }
+    
+    /**
+     * Write all queued changes in one transaction. If that fails, each
+     * change is written on its own, so only the ones that fail stay
+     * queued; a change that keeps failing is given up on.
+     * @return true if nothing that was queued is left to retry.
+     */
+    public boolean flush() {
+        synchronized (flushLock) {
+            List<RegisteredUser> batch;
+            
+            synchronized (pending) {
+                if (pending.isEmpty()) {
+                    return true;
+                }
+                
+                batch = new ArrayList<>(pending.values());
+            }
+            
+            List<RegisteredUser> done = new ArrayList<>(batch.size());
+            
+            try {
+                write(batch);
+                done.addAll(batch);
+            } catch (Exception ex) {
+                Logger.getLogger(UserManager.class.getName()).log(Level.WARNING,
+                        "Could not write " + batch.size()
+                        + " user change(s) together, writing them one at a time", ex);
+                
+                for (RegisteredUser user : batch) {
+                    try {
+                        write(Collections.singletonList(user));
+                        done.add(user);
+                    } catch (Exception ex1) {
+                        if (writeFailed(user, ex1)) {
+                            done.add(user);
+                        }
+                    }
+                }
+            }
+            
+            synchronized (pending) {
+                for (RegisteredUser user : done) {
+                    String key = user.getUsername().toLowerCase();
+                    
+                    // Only drop it if it wasn't queued again meanwhile.
+                    if (pending.get(key) == user) {
+                        pending.remove(key);
+                    }
+                }
+            }
+            
+            for (RegisteredUser user : batch) {
+                if (done.contains(user)) {
+                    writeFailures.remove(user.getUsername().toLowerCase());
+                }
+            }
+            
+            return done.size() == batch.size();
+        }
+    }
+    
+    private void write(final List<RegisteredUser> users) throws Exception {
+        dao.callBatchTasks(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                for (RegisteredUser user : users) {
+                    if (dao.update(user) != 1) {
+                        throw new SQLException("No row for " + user.getUsername());
+                    }
+                    
+                    saveGrants(user);
+                }
+                
+                return null;
+            }
+        });
+    }
+    
+    /**
+     * Count a failed write of one user's change, while holding flushLock.
+     * @return true if the change should be given up on.
+     */
+    private boolean writeFailed(RegisteredUser user, Exception ex) {
+        String key = user.getUsername().toLowerCase();
+        Integer count = writeFailures.get(key);
+        count = count == null ? 1 : count + 1;
+        
+        if (count >= MAX_WRITE_ATTEMPTS) {
+            Logger.getLogger(UserManager.class.getName()).log(Level.SEVERE,
+                    "Giving up on changes to " + user.getUsername() + " in "
+                    + identifier + " after " + count + " attempts; they were not saved", ex);
+            
+            return true;
+        }
+        
+        writeFailures.put(key, count);
+        Logger.getLogger(UserManager.class.getName()).log(Level.WARNING,
+                "Could not write changes to " + user.getUsername() + " in "
+                + identifier + ", will retry", ex);
+        
+        return false;
+    }
+    
+    private RegisteredUser getPending(String key) {
+        synchronized (pending) {
+            return pending.get(key.toLowerCase());
+        }
+    }
+    
+    public RegisteredUser getUser(String key) throws UnknownUser {
+        UserManager owner = resolveOwner(key);
+        RegisteredUser user = owner == null ? null : owner.findUser(key);
+        
+        if (user == null) {
+            throw new UnknownUser(key);
+        }
         
-        user.setDao(dao);
         return user;
     }
+    
+    /**
+     * Decide which database a username belongs to, from memory. Global
+     * registrations take precedence over this database's own.
+     * @param key
+     * @return the owning manager, or null if nobody has that username.
+     */
+    public UserManager resolveOwner(String key) {
+        UserManager global = getGlobal();
+        
+        if (global != null && global.hasAccount(key)) {
+            return global;
+        }
+        
+        return hasAccount(key) ? this : null;
+    }
+    
+    /**
+     * @return the global manager, or null if this is it.
+     */
+    private UserManager getGlobal() {
+        if (identifier.equalsIgnoreCase("__global__")) {
+            return null;
+        }
+        
+        return UserManager.get(null);
+    }
+    
+    /**
+     * @param key
+     * @return true if this database has the username, answered from memory.
+     */
+    boolean hasAccount(String key) {
+        return accounts.hasAccount(key);
+    }
+
+    /**
+     * Insert a batch of already built registrations in one transaction,
+     * skipping any whose username is taken.
+     * @param users
+     * @return how many were inserted.
+     * @throws SQLException 
+     */
+    int importBatch(final List<RegisteredUser> users) throws SQLException {
+        final List<RegisteredUser> inserted = new ArrayList<>();
+        final Set<String> seen = new HashSet<>();
+        
+        try {
+            dao.callBatchTasks(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    for (RegisteredUser user : users) {
+                        if (!seen.add(user.getUsername().toLowerCase())
+                                || findUser(user.getUsername()) != null) {
+                            continue;
+                        }
+                        
+                        attach(user);
+                        dao.create(user);
+                        saveGrants(user);
+                        inserted.add(user);
+                    }
+                    
+                    return null;
+                }
+            });
+        } catch (SQLException ex) {
+            throw ex;
+        } catch (Exception ex) {
+            throw new SQLException(ex);
+        }
+        
+        for (RegisteredUser user : inserted) {
+            updated(user);
+            accounts.put(user.getUsername(), user.getAuthMasks());
+            touch(user.getUsername());
+        }
+        
+        return inserted.size();
+    }
 
     public RegisteredUser registerUser(String username, String password, String email)
             throws UserExists, UserRegistrationException {
@@ -152,13 +1200,16 @@ public class UserManager {
         RegisteredUser user;
         try {
             user = new RegisteredUser(username, password, email);
-            user.setDao(dao);
+            attach(user);
         } catch (Throwable ex) {
             throw new UserRegistrationException(username, ex);
         }
 
         try {
             dao.createOrUpdate(user);
+            saveGrants(user);
+            updated(user);
+            accounts.put(user.getUsername(), user.getAuthMasks());
         } catch (SQLException ex) {
             Logger.getLogger(UserManager.class.getName())
                     .log(Level.SEVERE, null, ex);
@@ -168,16 +1219,14 @@ public class UserManager {
     }
 
     public RegisteredUser deleteUser(String key) throws UnknownUser {
-        if (!has(key)) {
+        RegisteredUser user = findUser(key);
+        
+        if (user == null) {
             throw new UnknownUser(key);
         }
 
-        RegisteredUser user = null;
-
         try {
-            user = getUser(key);
-
-            dao.delete(user);
+            delete(user);
         } catch (SQLException ex) {
             Logger.getLogger(UserManager.class.getName())
                     .log(Level.SEVERE, null, ex);
@@ -185,14 +1234,159 @@ public class UserManager {
 
         return user;
     }
+    
+    /**
+     * Remove a registration from the database and from memory.
+     * @param user
+     * @return the number of rows deleted.
+     * @throws SQLException 
+     */
+    int delete(RegisteredUser user) throws SQLException {
+        synchronized (pending) {
+            pending.remove(user.getUsername().toLowerCase());
+        }
+        
+        synchronized (flushLock) {
+            writeFailures.remove(user.getUsername().toLowerCase());
+        }
+        
+        int retn = dao.delete(user);
+        deleteGrants(user);
+        accounts.remove(user.getUsername());
+        
+        if (directory != null) {
+            directory.remove(user.getUsername().toLowerCase());
+        }
+        
+        touch(user.getUsername());
+        
+        return retn;
+    }
 
+    /**
+     * Walk every user in this database, a page at a time, so that memory
+     * use doesn't depend on how many there are.
+     * @param withGrants load perms and masks along with each page. If
+     * false, they are loaded from the database when first used.
+     * @return a cursor, which throws UserCursor.CursorException if a page
+     * can't be read.
+     */
+    public UserCursor iterateUsers(boolean withGrants) {
+        return new UserCursor(Collections.singletonList(this), withGrants, PAGE_SIZE);
+    }
+    
+    /**
+     * Walk every user visible from this database: the global users first,
+     * then this database's own, leaving out any a global user shadows.
+     * @param withGrants
+     * @return a cursor, which throws UserCursor.CursorException if a page
+     * can't be read.
+     */
+    public UserCursor iterateAllUsers(boolean withGrants) {
+        List<UserManager> sources = new ArrayList<>();
+        UserManager global = getGlobal();
+        
+        if (global != null) {
+            sources.add(global);
+        }
+        
+        sources.add(this);
+        
+        return new UserCursor(sources, withGrants, PAGE_SIZE);
+    }
+    
+    /**
+     * Fetch the next page of users, in id order.
+     * @param afterId the last id of the previous page.
+     * @param limit
+     * @param withGrants
+     * @return 
+     */
+    List<RegisteredUser> fetchPage(long afterId, int limit, boolean withGrants) throws SQLException {
+        QueryBuilder<RegisteredUser, String> qb = dao.queryBuilder();
+        qb.orderBy(RegisteredUser.ID, true).limit(Long.valueOf(limit))
+                .where().gt(RegisteredUser.ID, afterId);
+        
+        List<RegisteredUser> users = new ArrayList<>(limit);
+        List<RegisteredUser> fresh = new ArrayList<>(limit);
+        CloseableIterator<RegisteredUser> it = dao.iterator(qb.prepare());
+        
+        try {
+            while (it.hasNext()) {
+                RegisteredUser user = it.next();
+                // Prefer a queued copy, as it's newer.
+                RegisteredUser queued = getPending(user.getUsername());
+                
+                if (queued == null && directory != null) {
+                    queued = directory.get(user.getUsername().toLowerCase());
+                }
+                
+                if (queued != null) {
+                    users.add(queued);
+                    continue;
+                }
+                
+                attach(user);
+                users.add(user);
+                fresh.add(user);
+            }
+        } finally {
+            it.close();
+        }
+        
+        if (withGrants) {
+            loadGrants(fresh);
+        } else {
+            for (RegisteredUser user : fresh) {
+                user.deferGrants();
+            }
+        }
+        
+        return users;
+    }
+    
+    /**
+     * Load every user at once. Prefer iterateUsers for large databases.
+     * @return 
+     */
     public List<RegisteredUser> getAllUsers() {
         try {
-            return dao.queryForAll();
+            List<RegisteredUser> users = dao.queryForAll();
+            Map<String, List<String>> perms = new HashMap<>();
+            Map<String, List<String>> userMasks = new HashMap<>();
+            
+            // Two queries for everyone, rather than two per user.
+            for (UserPerm row : permDao.queryForAll()) {
+                group(perms, row.getUsername()).add(row.getNode());
+            }
+            
+            for (UserMask row : maskDao.queryForAll()) {
+                group(userMasks, row.getUsername()).add(row.getMask());
+            }
+            
+            for (RegisteredUser user : users) {
+                String key = user.getUsername().toLowerCase();
+                
+                attach(user);
+                user.setGrants(group(perms, key), group(userMasks, key));
+            }
+            
+            return users;
         } catch (SQLException ex) {
             Logger.getLogger(UserManager.class.getName())
                     .log(Level.SEVERE, null, ex);
             return new ArrayList<>();
         }
     }
+    
+    private static List<String> group(Map<String, List<String>> groups, String key) {
+        List<String> items = groups.get(key);
+        
+        if (items == null) {
+            items = new ArrayList<>();
+            groups.put(key, items);
+        }
+        
+        return items;
+    }
 }
@@ -0,0 +1,66 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Jason Unger <entityreborn@gmail.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.entityreborn.socpuppet.users;
+
+import com.j256.ormlite.field.DatabaseField;
+import com.j256.ormlite.table.DatabaseTable;
+
+/**
+ * A single permission grant held by a registration, such as "core.user.*"
+ * or "-core.user.del". One row per grant, so holders of a node can be
+ * found through an index.
+ *
+ * @author Jason Unger <entityreborn@gmail.com>
+ */
+@DatabaseTable(tableName = "user_perms")
+class UserPerm {
+    static final String USERNAME = "username_lower";
+    static final String NODE = "node";
+
+    @DatabaseField(generatedId = true)
+    private long id;
+    @DatabaseField(columnName = USERNAME, canBeNull = false, uniqueCombo = true,
+            indexName = "user_perms_user_idx")
+    private String username;
+    @DatabaseField(columnName = NODE, canBeNull = false, uniqueCombo = true,
+            indexName = "user_perms_node_idx")
+    private String node;
+
+    UserPerm() {
+    }
+
+    UserPerm(String username, String node) {
+        this.username = username;
+        this.node = node;
+    }
+
+    String getUsername() {
+        return username;
+    }
+
+    String getNode() {
+        return node;
+    }
+}
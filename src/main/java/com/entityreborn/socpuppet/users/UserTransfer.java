@@ -0,0 +1,249 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Jason Unger <entityreborn@gmail.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.entityreborn.socpuppet.users;
+
+import com.entityreborn.socpuppet.util.Password;
+import com.entityreborn.socpuppet.util.TsvEscape;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.Charset;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Moves registrations in and out of a user database in bulk, one line per
+ * user:
+ * <pre>
+ * username TAB password-hash TAB email TAB registered-millis TAB perms TAB masks
+ * </pre>
+ * where perms and masks are space separated. Tabs, newlines and backslashes
+ * in the email are escaped with a backslash. Passwords stay hashed, so
+ * nothing is rehashed on the way in, but lines whose hash is malformed or
+ * has out of range settings are skipped. Lines starting with '#' are
+ * ignored. Imports are written in batched transactions.
+ *
+ * @author Jason Unger <entityreborn@gmail.com>
+ */
+public class UserTransfer {
+    public static final String HEADER = "# socpuppet users v1";
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int BATCH_SIZE = 500;
+
+    public static class Result {
+        private final long rows;
+        private final long skipped;
+        private final long millis;
+
+        Result(long rows, long skipped, long millis) {
+            this.rows = rows;
+            this.skipped = skipped;
+            this.millis = millis;
+        }
+
+        /**
+         * @return how many users were written.
+         */
+        public long getRows() {
+            return rows;
+        }
+
+        /**
+         * @return how many lines were malformed or already registered.
+         */
+        public long getSkipped() {
+            return skipped;
+        }
+
+        public long getMillis() {
+            return millis;
+        }
+
+        public long getRowsPerSecond() {
+            return millis == 0 ? rows : rows * 1000 / millis;
+        }
+
+        @Override
+        public String toString() {
+            return rows + " user(s), " + skipped + " skipped, in " + millis
+                    + "ms (" + getRowsPerSecond() + " rows/s)";
+        }
+    }
+
+    private UserTransfer() {
+    }
+
+    /**
+     * Write every user in the given database to a file.
+     *
+     * @param manager
+     * @param file
+     * @return
+     * @throws IOException
+     */
+    public static Result export(UserManager manager, File file) throws IOException {
+        long start = System.currentTimeMillis();
+        long rows = 0;
+
+        try (BufferedWriter out = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(file), UTF8));
+                UserCursor users = manager.iterateUsers(true)) {
+            out.write(HEADER);
+            out.newLine();
+
+            while (users.hasNext()) {
+                out.write(format(users.next()));
+                out.newLine();
+                rows++;
+            }
+        } catch (UserCursor.CursorException ex) {
+            throw new IOException("Could not read users from " + manager.getIdentifier(),
+                    ex.getCause());
+        }
+
+        return new Result(rows, 0, System.currentTimeMillis() - start);
+    }
+
+    /**
+     * Add every user in a file to the given database. Users that already
+     * exist are left alone.
+     *
+     * @param manager
+     * @param file
+     * @return
+     * @throws IOException
+     * @throws SQLException
+     */
+    public static Result importFrom(UserManager manager, File file) throws IOException, SQLException {
+        long start = System.currentTimeMillis();
+        long rows = 0;
+        long lines = 0;
+        List<RegisteredUser> batch = new ArrayList<>(BATCH_SIZE);
+
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(
+                new FileInputStream(file), UTF8))) {
+            String line;
+
+            while ((line = in.readLine()) != null) {
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+
+                lines++;
+                RegisteredUser user = parse(line);
+
+                if (user == null) {
+                    continue;
+                }
+
+                batch.add(user);
+
+                if (batch.size() >= BATCH_SIZE) {
+                    rows += manager.importBatch(batch);
+                    batch.clear();
+                }
+            }
+        }
+
+        if (!batch.isEmpty()) {
+            rows += manager.importBatch(batch);
+        }
+
+        return new Result(rows, lines - rows, System.currentTimeMillis() - start);
+    }
+
+    static String format(RegisteredUser user) {
+        StringBuilder sb = new StringBuilder(128);
+        Date reg = user.getRegDate();
+
+        sb.append(user.getUsername()).append('\t')
+                .append(user.getPasswordHash()).append('\t')
+                .append(user.getEmail() == null ? "" : TsvEscape.escape(user.getEmail())).append('\t')
+                .append(reg == null ? "" : Long.toString(reg.getTime())).append('\t');
+        join(sb, user.getPerms());
+        sb.append('\t');
+        join(sb, user.getAuthMasks());
+
+        return sb.toString();
+    }
+
+    /**
+     * @param line
+     * @return the user, or null if the line is malformed.
+     */
+    static RegisteredUser parse(String line) {
+        String[] fields = line.split("\t", -1);
+
+        if (fields.length != 6 || fields[0].isEmpty() || !Password.isValid(fields[1])) {
+            return null;
+        }
+
+        RegisteredUser user = new RegisteredUser();
+        user.setUsername(fields[0]);
+        user.setPasswordHash(fields[1]);
+        user.setEmail(fields[2].isEmpty() ? null : TsvEscape.unescape(fields[2]));
+
+        try {
+            user.setRegDate(fields[3].isEmpty() ? new Date() : new Date(Long.parseLong(fields[3])));
+        } catch (NumberFormatException ex) {
+            return null;
+        }
+
+        user.setGrants(split(fields[4]), split(fields[5]));
+
+        return user;
+    }
+
+    private static void join(StringBuilder sb, Collection<String> items) {
+        boolean first = true;
+
+        for (String item : items) {
+            if (!first) {
+                sb.append(' ');
+            }
+
+            sb.append(item);
+            first = false;
+        }
+    }
+
+    private static List<String> split(String field) {
+        if (field.isEmpty()) {
+            return Collections.emptyList();
+        }
+
+        return Arrays.asList(field.split(" "));
+    }
+}
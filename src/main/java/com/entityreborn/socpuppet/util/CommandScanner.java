@@ -0,0 +1,146 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Jason Unger <entityreborn@gmail.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.entityreborn.socpuppet.util;
+
+/**
+ * Splits chat lines of the form "&lt;prefix&gt;trigger [args]" into their
+ * parts. Lines that don't start with the prefix are rejected after looking
+ * at a single character, and nothing is allocated for them.
+ *
+ * @author Jason Unger <entityreborn@gmail.com>
+ */
+public final class CommandScanner {
+    public static final String DEFAULT_PREFIX = "^";
+
+    public static final class Command {
+        private final String trigger;
+        private final String args;
+
+        private Command(String trigger, String args) {
+            this.trigger = trigger;
+            this.args = args;
+        }
+
+        public String getTrigger() {
+            return trigger;
+        }
+
+        /**
+         * @return everything after the first whitespace character following
+         * the trigger, or an empty string if there was nothing.
+         */
+        public String getArgs() {
+            return args;
+        }
+    }
+
+    private final String prefix;
+    private final char first;
+
+    public CommandScanner(String prefix) {
+        if (prefix == null || prefix.isEmpty()) {
+            prefix = DEFAULT_PREFIX;
+        }
+
+        this.prefix = prefix;
+        this.first = prefix.charAt(0);
+    }
+
+    public String getPrefix() {
+        return prefix;
+    }
+
+    /**
+     * Check if a line looks like a command, without splitting it.
+     *
+     * @param line
+     * @return
+     */
+    public boolean isCommand(String line) {
+        int plen = prefix.length();
+
+        if (line == null || line.length() <= plen || line.charAt(0) != first) {
+            return false;
+        }
+
+        if (plen > 1 && !line.startsWith(prefix)) {
+            return false;
+        }
+
+        // An empty trigger ("^ foo") isn't a command.
+        return !Character.isWhitespace(line.charAt(plen));
+    }
+
+    /**
+     * Split a line into trigger and arguments.
+     *
+     * @param line
+     * @return the command, or null if the line isn't one.
+     */
+    public Command scan(String line) {
+        if (!isCommand(line)) {
+            return null;
+        }
+
+        int start = prefix.length();
+        int len = line.length();
+        int end = start;
+
+        while (end < len) {
+            char c = line.charAt(end);
+
+            // Multi-line payloads never counted as commands.
+            if (c == '\n' || c == '\r') {
+                return null;
+            }
+
+            // Any whitespace ends the trigger. The regex this replaced
+            // only split on spaces, so "^say<TAB>hi" used to be a trigger
+            // named "say<TAB>hi".
+            if (Character.isWhitespace(c)) {
+                break;
+            }
+
+            end++;
+        }
+
+        String trigger = line.substring(start, end);
+        String args = "";
+
+        if (end + 1 < len) {
+            for (int i = end + 1; i < len; i++) {
+                char c = line.charAt(i);
+
+                if (c == '\n' || c == '\r') {
+                    return null;
+                }
+            }
+
+            args = line.substring(end + 1);
+        }
+
+        return new Command(trigger, args);
+    }
+}
@@ -3,19 +3,75 @@ package com.entityreborn.socpuppet.util;
 /**
  * Taken from http://stackoverflow.com/a/11038230/1511299
  */
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.Map;
 import javax.crypto.SecretKey;
 import javax.crypto.SecretKeyFactory;
 import javax.crypto.spec.PBEKeySpec;
 import org.apache.commons.codec.binary.Base64;
 
 public class Password {
+    // Stored hashes look like "1$<algorithm>$<iterations>$<salt>$<hash>".
+    // Hashes from before there was a version are just "<salt>$<hash>", made
+    // with PBKDF2WithHmacSHA1 at 10240 iterations.
+    private static final String VERSION = "1";
+    private static final String LEGACY_ALGORITHM = "PBKDF2WithHmacSHA1";
+    private static final int LEGACY_ITERATIONS = 10*1024;
+    // Only PBKDF2 is ever used to make hashes, so a stored hash naming any
+    // other key factory didn't come from us.
+    private static final String ALGORITHM_PREFIX = "PBKDF2WithHmac";
+    // Stored hashes can come from imports, so their settings are bounded;
+    // otherwise one bad line could make every login for that user hash
+    // for minutes.
+    private static final int MAX_ITERATIONS = 2000000;
+    private static final int MIN_KEY_BYTES = 16;
+    private static final int MAX_KEY_BYTES = 64;
+    
     // The higher the number of iterations the more 
     // expensive computing the hash is for us
     // and also for a brute force attack.
-    private static final int iterations = 10*1024;
+    private static volatile String algorithm = LEGACY_ALGORITHM;
+    private static volatile int iterations = LEGACY_ITERATIONS;
     private static final int saltLen = 32;
     private static final int desiredKeyLen = 256;
+    // Both are costly to set up, so make them once. SecureRandom is safe to
+    // share; SecretKeyFactory isn't, so there's one per thread.
+    private static final SecureRandom random = new SecureRandom();
+    private static final ThreadLocal<Map<String, SecretKeyFactory>> factories = new ThreadLocal<Map<String, SecretKeyFactory>>() {
+        @Override
+        protected Map<String, SecretKeyFactory> initialValue() {
+            return new HashMap<>();
+        }
+    };
+
+    /** Sets the cost of newly made hashes. Existing hashes made
+        with other settings are still accepted, and are replaced
+        the next time their user logs in.
+     * @param algorithm a PBKDF2 algorithm name, such as PBKDF2WithHmacSHA256
+     * @param iterations 
+     * @throws java.security.NoSuchAlgorithmException 
+     */
+    public static void configure(String algorithm, int iterations) throws NoSuchAlgorithmException {
+        if (!algorithm.startsWith(ALGORITHM_PREFIX)) {
+            throw new NoSuchAlgorithmException(algorithm + " is not a PBKDF2 algorithm");
+        }
+        
+        factory(algorithm);
+        
+        Password.algorithm = algorithm;
+        Password.iterations = Math.min(MAX_ITERATIONS, Math.max(1, iterations));
+    }
+    
+    public static String getAlgorithm() {
+        return algorithm;
+    }
+    
+    public static int getIterations() {
+        return iterations;
+    }
 
     /** Computes a salted PBKDF2 hash of given plaintext password
         suitable for storing in a database. 
@@ -25,9 +81,13 @@ public class Password {
      * @throws java.lang.Exception
      */
     public static String getSaltedHash(String password) throws Exception {
-        byte[] salt = SecureRandom.getInstance("SHA1PRNG").generateSeed(saltLen);
-        // store the salt with the password
-        return Base64.encodeBase64String(salt) + "$" + hash(password, salt);
+        String alg = algorithm;
+        int iter = iterations;
+        byte[] salt = new byte[saltLen];
+        random.nextBytes(salt);
+        // store the salt and settings with the password
+        return VERSION + "$" + alg + "$" + iter + "$" + Base64.encodeBase64String(salt)
+                + "$" + hash(password, salt, alg, iter, desiredKeyLen);
     }
 
     /** Checks whether given plaintext password corresponds 
@@ -37,23 +97,153 @@ public class Password {
      * @throws java.lang.Exception 
      */
     public static boolean check(String password, String stored) throws Exception {
-        String[] saltAndPass = stored.split("\\$");
-        if (saltAndPass.length != 2)
+        Stored parsed = Stored.parse(stored);
+        
+        if (parsed == null) {
+            return false;
+        }
+        
+        String hashOfInput = hash(password, parsed.salt, parsed.alg, parsed.iter,
+                parsed.key.length * 8);
+        return MessageDigest.isEqual(Base64.decodeBase64(hashOfInput), parsed.key);
+    }
+    
+    /** Checks whether a stored hash is well formed, with settings
+        in range and a PBKDF2 algorithm this JVM has.
+     * @param stored
+     * @return 
+     */
+    public static boolean isValid(String stored) {
+        Stored parsed = Stored.parse(stored);
+        
+        if (parsed == null) {
+            return false;
+        }
+        
+        try {
+            factory(parsed.alg);
+        } catch (NoSuchAlgorithmException ex) {
+            return false;
+        }
+        
+        return true;
+    }
+    
+    private static class Stored {
+        String alg;
+        int iter;
+        byte[] salt;
+        byte[] key;
+        
+        static Stored parse(String stored) {
+            if (stored == null) {
+                return null;
+            }
+            
+            String[] parts = stored.split("\\$");
+            Stored s = new Stored();
+            String salt;
+            String expected;
+            
+            if (parts.length == 2) {
+                s.alg = LEGACY_ALGORITHM;
+                s.iter = LEGACY_ITERATIONS;
+                salt = parts[0];
+                expected = parts[1];
+            } else if (parts.length == 5 && parts[0].equals(VERSION)) {
+                s.alg = parts[1];
+                
+                try {
+                    s.iter = Integer.parseInt(parts[2]);
+                } catch (NumberFormatException ex) {
+                    return null;
+                }
+                
+                salt = parts[3];
+                expected = parts[4];
+            } else {
+                return null;
+            }
+            
+            if (!s.alg.startsWith(ALGORITHM_PREFIX) || s.iter < 1 || s.iter > MAX_ITERATIONS) {
+                return null;
+            }
+            
+            s.salt = Base64.decodeBase64(salt);
+            s.key = Base64.decodeBase64(expected);
+            
+            if (s.salt.length == 0 || s.key.length < MIN_KEY_BYTES
+                    || s.key.length > MAX_KEY_BYTES) {
+                return null;
+            }
+            
+            return s;
+        }
+    }
+    
+    /** Checks whether a stored hash was made with settings other
+        than the current ones, and should be replaced.
+     * @param stored
+     * @return 
+     */
+    public static boolean needsRehash(String stored) {
+        if (stored == null) {
             return false;
-        String hashOfInput = hash(password, Base64.decodeBase64(saltAndPass[0]));
-        return hashOfInput.equals(saltAndPass[1]);
+        }
+        
+        String[] parts = stored.split("\\$");
+        
+        if (parts.length != 5 || !parts[0].equals(VERSION)) {
+            return true;
+        }
+        
+        return !parts[1].equals(algorithm) || !parts[2].equals(Integer.toString(iterations));
+    }
+    
+    /** Times hashing at the given settings on this machine.
+     * @param alg
+     * @param iter
+     * @param rounds how many hashes to average over
+     * @return the average time per hash, in microseconds
+     * @throws java.lang.Exception 
+     */
+    public static long time(String alg, int iter, int rounds) throws Exception {
+        byte[] salt = new byte[saltLen];
+        random.nextBytes(salt);
+        
+        // Once untimed, so class loading and setup aren't counted.
+        hash("benchmark", salt, alg, iter, desiredKeyLen);
+        
+        long start = System.nanoTime();
+        
+        for (int i = 0; i < rounds; i++) {
+            hash("benchmark", salt, alg, iter, desiredKeyLen);
+        }
+        
+        return (System.nanoTime() - start) / Math.max(1, rounds) / 1000;
+    }
+    
+    private static SecretKeyFactory factory(String alg) throws NoSuchAlgorithmException {
+        Map<String, SecretKeyFactory> cache = factories.get();
+        SecretKeyFactory f = cache.get(alg);
+        
+        if (f == null) {
+            f = SecretKeyFactory.getInstance(alg);
+            cache.put(alg, f);
+        }
+        
+        return f;
     }
 
     // using PBKDF2 from Sun, an alternative is https://github.com/wg/scrypt
     // cf. http://www.unlimitednovelty.com/2012/03/dont-use-bcrypt.html
-    private static String hash(String password, byte[] salt) throws Exception {
+    private static String hash(String password, byte[] salt, String alg, int iter, int keyLen) throws Exception {
         if (password == null || password.length() == 0) {
             throw new IllegalArgumentException("Empty passwords are not supported.");
         }
         
-        SecretKeyFactory f = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA1");
-        SecretKey key = f.generateSecret(new PBEKeySpec(
-                password.toCharArray(), salt, iterations, desiredKeyLen)
+        SecretKey key = factory(alg).generateSecret(new PBEKeySpec(
+                password.toCharArray(), salt, iter, keyLen)
         );
         
         return Base64.encodeBase64String(key.getEncoded());
@@ -0,0 +1,219 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Jason Unger <entityreborn@gmail.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.entityreborn.socpuppet.util;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs password hashing (logins and registrations) on a few dedicated
+ * threads with a bounded queue, so a burst of attempts can neither pin
+ * every trigger worker nor pile up without limit. Each host may only make
+ * so many attempts per time window, however many nicks it uses.
+ *
+ * @author Jason Unger <entityreborn@gmail.com>
+ */
+public class PasswordExecutor {
+    public static enum Admission {
+        ACCEPTED,
+        THROTTLED,
+        BUSY
+    }
+
+    private static final class Window {
+        long start;
+        int count;
+    }
+
+    private static volatile PasswordExecutor instance = new PasswordExecutor(2, 32, 5, 60000);
+
+    private final ThreadPoolExecutor executor;
+    private final int attempts;
+    private final long window;
+    // In the order the windows started, so those that have run out are
+    // always at the front.
+    private final LinkedHashMap<String, Window> windows = new LinkedHashMap<>();
+
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong latencyNanos = new AtomicLong();
+    private final AtomicLong throttled = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+
+    public static PasswordExecutor get() {
+        return instance;
+    }
+
+    /**
+     * Replace the shared executor with one using the given settings.
+     *
+     * @param threads how many hashes may run at once.
+     * @param queue how many may wait to run.
+     * @param attempts attempts allowed per host per window.
+     * @param window the window's length, in milliseconds.
+     */
+    public static synchronized void configure(int threads, int queue, int attempts, long window) {
+        PasswordExecutor old = instance;
+        instance = new PasswordExecutor(threads, queue, attempts, window);
+        old.shutdown();
+    }
+
+    private PasswordExecutor(int threads, int queue, int attempts, long window) {
+        final AtomicInteger count = new AtomicInteger();
+
+        this.attempts = Math.max(1, attempts);
+        this.window = Math.max(1, window);
+        this.executor = new ThreadPoolExecutor(Math.max(1, threads), Math.max(1, threads),
+                0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(Math.max(1, queue)),
+                new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "password-worker-" + count.getAndIncrement());
+                t.setDaemon(true);
+
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Queue some hashing work on behalf of the given hostmask.
+     *
+     * @param hostmask who the attempt is from. Attempts are counted against
+     * its host, so changing nick or ident doesn't start a new window.
+     * @param task the work, which should reply to the user itself when done.
+     * @return whether the task was queued, or why not.
+     */
+    public Admission submit(String hostmask, final Runnable task) {
+        if (!allow(source(hostmask))) {
+            throttled.incrementAndGet();
+            return Admission.THROTTLED;
+        }
+
+        final long queued = System.nanoTime();
+
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        task.run();
+                    } catch (RuntimeException ex) {
+                        Logger.getLogger(PasswordExecutor.class.getName())
+                                .log(Level.SEVERE, null, ex);
+                    } finally {
+                        completed.incrementAndGet();
+                        latencyNanos.addAndGet(System.nanoTime() - queued);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            rejected.incrementAndGet();
+            return Admission.BUSY;
+        }
+
+        return Admission.ACCEPTED;
+    }
+
+    private static String source(String hostmask) {
+        int at = hostmask.lastIndexOf('@');
+
+        return hostmask.substring(at + 1).toLowerCase();
+    }
+
+    private boolean allow(String key) {
+        long now = System.currentTimeMillis();
+
+        synchronized (windows) {
+            // Forget hosts whose window has run out, stopping at the
+            // first that hasn't.
+            for (Iterator<Window> it = windows.values().iterator(); it.hasNext();) {
+                if (now - it.next().start < window) {
+                    break;
+                }
+
+                it.remove();
+            }
+
+            Window w = windows.get(key);
+
+            if (w == null) {
+                w = new Window();
+                w.start = now;
+                windows.put(key, w);
+            }
+
+            return ++w.count <= attempts;
+        }
+    }
+
+    /**
+     * @return how many tasks are waiting to run.
+     */
+    public int getQueueDepth() {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * @return average time from submission to completion, in microseconds.
+     */
+    public long getAverageLatencyMicros() {
+        long count = completed.get();
+
+        return count == 0 ? 0 : latencyNanos.get() / count / 1000;
+    }
+
+    public long getCompleted() {
+        return completed.get();
+    }
+
+    public long getThrottled() {
+        return throttled.get();
+    }
+
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    @Override
+    public String toString() {
+        return "password hashing: " + getQueueDepth() + " queued, "
+                + completed.get() + " done, avg " + getAverageLatencyMicros()
+                + "us; " + throttled.get() + " throttled, " + rejected.get()
+                + " turned away";
+    }
+
+    public void shutdown() {
+        executor.shutdown();
+    }
+}
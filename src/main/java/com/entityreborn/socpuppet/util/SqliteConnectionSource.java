@@ -0,0 +1,363 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Jason Unger <entityreborn@gmail.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.entityreborn.socpuppet.util;
+
+import com.j256.ormlite.jdbc.JdbcDatabaseConnection;
+import com.j256.ormlite.jdbc.JdbcPooledConnectionSource;
+import com.j256.ormlite.logger.Logger;
+import com.j256.ormlite.support.DatabaseConnection;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+/**
+ * A pooled connection source for a SQLite database file. There is one per
+ * file, shared by everything that opens it. Connections run in WAL mode
+ * with synchronous=NORMAL, so readers don't block behind writers, and wait
+ * out each other's write locks for up to BUSY_TIMEOUT_MS instead of failing
+ * with SQLITE_BUSY. Each connection keeps its most recently used prepared
+ * statements open instead of compiling them again on every query; they are
+ * closed along with the connection.
+ *
+ * @author Jason Unger <entityreborn@gmail.com>
+ */
+public class SqliteConnectionSource extends JdbcPooledConnectionSource {
+    private static final Map<String, SqliteConnectionSource> sources = new HashMap<>();
+    private static final int STATEMENT_CACHE_SIZE = 16;
+    private static final int MAX_FREE_CONNECTIONS = 4;
+    private static final int BUSY_TIMEOUT_MS = 5000;
+
+    private final String name;
+    private final AtomicLong acquires = new AtomicLong();
+    private final AtomicLong acquireNanos = new AtomicLong();
+    private final AtomicLong statements = new AtomicLong();
+    private final AtomicLong statementNanos = new AtomicLong();
+    private final AtomicLong statementCacheHits = new AtomicLong();
+
+    /**
+     * Get the shared source for a database file, opening it if needed.
+     *
+     * @param dbFile
+     * @return
+     * @throws SQLException
+     */
+    public static synchronized SqliteConnectionSource get(File dbFile) throws SQLException {
+        String key;
+
+        try {
+            key = dbFile.getCanonicalPath();
+        } catch (IOException ex) {
+            key = dbFile.getAbsolutePath();
+        }
+
+        SqliteConnectionSource source = sources.get(key);
+
+        if (source == null) {
+            source = new SqliteConnectionSource(dbFile.getName(), "jdbc:sqlite:" + dbFile.getPath());
+            sources.put(key, source);
+        }
+
+        return source;
+    }
+
+    /**
+     * @return every open source.
+     */
+    public static synchronized List<SqliteConnectionSource> getSources() {
+        return Collections.unmodifiableList(new ArrayList<>(sources.values()));
+    }
+
+    /**
+     * Close every open source.
+     */
+    public static synchronized void closeAll() {
+        for (SqliteConnectionSource source : sources.values()) {
+            try {
+                source.close();
+            } catch (SQLException ex) {
+                java.util.logging.Logger.getLogger(SqliteConnectionSource.class.getName())
+                        .log(Level.WARNING, "Could not close " + source.name, ex);
+            }
+        }
+
+        sources.clear();
+    }
+
+    private SqliteConnectionSource(String name, String url) throws SQLException {
+        super(url);
+        this.name = name;
+
+        setMaxConnectionsFree(MAX_FREE_CONNECTIONS);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    protected DatabaseConnection makeConnection(Logger logger) throws SQLException {
+        Connection conn = DriverManager.getConnection(getUrl());
+
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("PRAGMA journal_mode=WAL");
+            stmt.execute("PRAGMA synchronous=NORMAL");
+            stmt.execute("PRAGMA busy_timeout=" + BUSY_TIMEOUT_MS);
+        }
+
+        return new JdbcDatabaseConnection(cachingConnection(conn));
+    }
+
+    @Override
+    public DatabaseConnection getReadWriteConnection() throws SQLException {
+        long start = System.nanoTime();
+
+        try {
+            return super.getReadWriteConnection();
+        } finally {
+            acquires.incrementAndGet();
+            acquireNanos.addAndGet(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * @return average time spent waiting for a pooled connection, in
+     * microseconds.
+     */
+    public long getAverageWaitMicros() {
+        long count = acquires.get();
+
+        return count == 0 ? 0 : acquireNanos.get() / count / 1000;
+    }
+
+    /**
+     * @return average time a statement took to execute, in microseconds.
+     */
+    public long getAverageStatementMicros() {
+        long count = statements.get();
+
+        return count == 0 ? 0 : statementNanos.get() / count / 1000;
+    }
+
+    public long getStatementCount() {
+        return statements.get();
+    }
+
+    public long getStatementCacheHits() {
+        return statementCacheHits.get();
+    }
+
+    @Override
+    public String toString() {
+        return name + ": " + acquires.get() + " connection(s) handed out, avg wait "
+                + getAverageWaitMicros() + "us; " + statements.get()
+                + " statement(s), avg " + getAverageStatementMicros() + "us, "
+                + statementCacheHits.get() + " served from cache";
+    }
+
+    private Connection cachingConnection(final Connection conn) {
+        // In access order, so the least recently used are at the front.
+        final Map<String, CachedStatement> cache = new LinkedHashMap<>(16, 0.75f, true);
+
+        return (Connection) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[]{Connection.class}, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                String mname = method.getName();
+
+                if (mname.equals("prepareStatement") && args != null
+                        && (args.length == 1 || args.length == 3)) {
+                    String key = args.length == 1 ? (String) args[0]
+                            : args[0] + "|" + args[1] + "|" + args[2];
+                    CachedStatement cached = cache.get(key);
+
+                    if (cached != null && !cached.inUse) {
+                        cached.inUse = true;
+                        statementCacheHits.incrementAndGet();
+
+                        return cached.proxy;
+                    }
+
+                    PreparedStatement real = (PreparedStatement) call(conn, method, args);
+
+                    if (cached != null) {
+                        // Already checked out by an outer query; don't cache this one.
+                        return timedStatement(real, null);
+                    }
+
+                    cached = new CachedStatement(real);
+                    cached.proxy = timedStatement(real, cached);
+                    cached.inUse = true;
+                    cache.put(key, cached);
+                    trim(cache);
+
+                    return cached.proxy;
+                }
+
+                if (mname.equals("close")) {
+                    for (Iterator<CachedStatement> it = cache.values().iterator(); it.hasNext();) {
+                        it.next().closeQuietly();
+                        it.remove();
+                    }
+                }
+
+                return call(conn, method, args);
+            }
+        });
+    }
+
+    /**
+     * Close the least recently used idle statements until the cache is back
+     * down to size. Statements still checked out are skipped rather than
+     * stopping at them, so one long-lived query can't let the cache grow.
+     */
+    private static void trim(Map<String, CachedStatement> cache) {
+        int excess = cache.size() - STATEMENT_CACHE_SIZE;
+
+        for (Iterator<CachedStatement> it = cache.values().iterator(); excess > 0 && it.hasNext();) {
+            CachedStatement cached = it.next();
+
+            if (!cached.inUse) {
+                cached.closeQuietly();
+                it.remove();
+                excess--;
+            }
+        }
+    }
+
+    private PreparedStatement timedStatement(final PreparedStatement real, final CachedStatement cached) {
+        return (PreparedStatement) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[]{PreparedStatement.class}, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                String mname = method.getName();
+
+                if (cached != null && mname.equals("close")) {
+                    // Hand it back to the cache instead, letting go of any
+                    // read lock its results still hold.
+                    cached.release();
+
+                    return null;
+                }
+
+                if (cached != null && mname.equals("isClosed")) {
+                    return !cached.inUse || cached.closed;
+                }
+
+                Object result;
+
+                if (!mname.startsWith("execute")) {
+                    result = call(real, method, args);
+                } else {
+                    long start = System.nanoTime();
+
+                    try {
+                        result = call(real, method, args);
+                    } finally {
+                        statements.incrementAndGet();
+                        statementNanos.addAndGet(System.nanoTime() - start);
+                    }
+                }
+
+                if (cached != null && result instanceof ResultSet) {
+                    cached.results = (ResultSet) result;
+                }
+
+                return result;
+            }
+        });
+    }
+
+    private static Object call(Object target, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException ex) {
+            throw ex.getCause();
+        }
+    }
+
+    private static class CachedStatement {
+        final PreparedStatement real;
+        PreparedStatement proxy;
+        ResultSet results;
+        boolean inUse;
+        boolean closed;
+
+        CachedStatement(PreparedStatement real) {
+            this.real = real;
+        }
+
+        void release() throws SQLException {
+            inUse = false;
+
+            if (closed) {
+                return;
+            }
+
+            closeResults();
+            real.clearParameters();
+        }
+
+        void closeResults() {
+            if (results != null) {
+                try {
+                    results.close();
+                } catch (SQLException ex) {
+                    // Done with it either way.
+                }
+
+                results = null;
+            }
+        }
+
+        void closeQuietly() {
+            closed = true;
+            closeResults();
+
+            try {
+                real.close();
+            } catch (SQLException ex) {
+                // Closing anyway.
+            }
+        }
+    }
+}
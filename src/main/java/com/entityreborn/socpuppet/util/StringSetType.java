@@ -28,7 +28,7 @@ import com.j256.ormlite.field.SqlType;
 import com.j256.ormlite.field.types.BaseDataType;
 import com.j256.ormlite.support.DatabaseResults;
 import java.sql.SQLException;
-import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashSet;
 
 /**
@@ -54,28 +54,83 @@ public class StringSetType extends BaseDataType {
         super(sqlType, classes);
     }
 
-    @Override
-    public Object sqlArgToJava(FieldType fieldType, Object sqlArg, int columnPos) throws SQLException {
-        HashSet<String> retn = new HashSet<>();
-        retn.addAll(Arrays.asList(sqlArg.toString().split(TOKEN)));
+    /**
+     * Split a stored string back into its items. Empty items are skipped.
+     *
+     * @param str
+     * @return
+     */
+    public static HashSet<String> decode(String str) {
+        String token = TOKEN;
+        int len = str.length();
+
+        if (len == 0) {
+            return new HashSet<>();
+        }
+
+        // Count first, so the set never has to grow.
+        int count = 1;
+
+        for (int i = str.indexOf(token); i != -1; i = str.indexOf(token, i + token.length())) {
+            count++;
+        }
+
+        HashSet<String> retn = new HashSet<>(count * 4 / 3 + 1);
+        int start = 0;
+
+        while (start <= len) {
+            int end = str.indexOf(token, start);
+
+            if (end == -1) {
+                end = len;
+            }
+
+            if (end > start) {
+                retn.add(str.substring(start, end));
+            }
+
+            start = end + token.length();
+        }
 
         return retn;
     }
 
-    @Override
-    public Object javaToSqlArg(FieldType fieldType, Object javaObject) throws SQLException {
-        HashSet<String> set = (HashSet<String>) javaObject;
-        String retn = "";
+    /**
+     * Join items into a single string for storage.
+     *
+     * @param items
+     * @return
+     */
+    public static String encode(Collection<String> items) {
+        String token = TOKEN;
+        int size = 0;
+
+        for (String item : items) {
+            size += item.length() + token.length();
+        }
+
+        StringBuilder sb = new StringBuilder(size);
 
-        for (String item : set) {
-            if (!retn.isEmpty()) {
-                retn += TOKEN;
+        for (String item : items) {
+            if (sb.length() > 0) {
+                sb.append(token);
             }
 
-            retn += item;
+            sb.append(item);
         }
 
-        return retn;
+        return sb.toString();
+    }
+
+    @Override
+    public Object sqlArgToJava(FieldType fieldType, Object sqlArg, int columnPos) throws SQLException {
+        return decode(sqlArg.toString());
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public Object javaToSqlArg(FieldType fieldType, Object javaObject) throws SQLException {
+        return encode((Collection<String>) javaObject);
     }
 
     @Override
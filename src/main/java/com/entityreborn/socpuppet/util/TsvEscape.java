@@ -0,0 +1,107 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Jason Unger <entityreborn@gmail.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.entityreborn.socpuppet.util;
+
+/**
+ * Escaping for free text written into tab separated files, such as the
+ * extension index and user exports.
+ *
+ * @author Jason Unger <entityreborn@gmail.com>
+ */
+public class TsvEscape {
+    private TsvEscape() {
+    }
+
+    /**
+     * @param value
+     * @return the value with backslashes, tabs and line breaks escaped with
+     * a backslash, so it fits in one tab separated field.
+     */
+    public static String escape(String value) {
+        StringBuilder b = new StringBuilder(value.length());
+
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+
+            switch (c) {
+                case '\\':
+                    b.append("\\\\");
+                    break;
+                case '\t':
+                    b.append("\\t");
+                    break;
+                case '\n':
+                    b.append("\\n");
+                    break;
+                case '\r':
+                    b.append("\\r");
+                    break;
+                default:
+                    b.append(c);
+            }
+        }
+
+        return b.toString();
+    }
+
+    /**
+     * @param value
+     * @return the value with escapes made by {@link #escape} undone.
+     */
+    public static String unescape(String value) {
+        if (value.indexOf('\\') == -1) {
+            return value;
+        }
+
+        StringBuilder b = new StringBuilder(value.length());
+
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+
+            if (c != '\\' || i == value.length() - 1) {
+                b.append(c);
+                continue;
+            }
+
+            char next = value.charAt(++i);
+
+            switch (next) {
+                case 't':
+                    b.append('\t');
+                    break;
+                case 'n':
+                    b.append('\n');
+                    break;
+                case 'r':
+                    b.append('\r');
+                    break;
+                default:
+                    b.append(next);
+            }
+        }
+
+        return b.toString();
+    }
+}
@@ -1,5 +1,6 @@
 package com.laytonsmith.PureUtilities.ClassLoading;
 
+import com.laytonsmith.PureUtilities.ClassLoading.ClassMirror.AnnotationMirror;
 import com.laytonsmith.PureUtilities.ClassLoading.ClassMirror.ClassMirror;
 import com.laytonsmith.PureUtilities.ClassLoading.ClassMirror.ClassReferenceMirror;
 import com.laytonsmith.PureUtilities.ClassLoading.ClassMirror.FieldMirror;
@@ -20,18 +21,24 @@ import java.net.URL;
 import java.net.URLDecoder;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Deque;
+import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Pattern;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 
 /**
  * This class contains methods for dynamically determining things about Classes,
@@ -122,10 +129,13 @@ public class ClassDiscovery {
 	 */
 	private final Map<Class<?>, Set<ClassMirror<?>>> classSubtypeCache = new HashMap<>();
 	/**
-	 * Cache for class annotations. Whenever a new URL is added to the URL
-	 * cache, this is cleared.
+	 * For each scanned URL, maps annotation JVM names to the classes in that
+	 * URL with the annotation, so annotation queries are lookups rather than
+	 * scans. URLs loaded from a pre cache aren't in here, their pre cache is
+	 * asked instead. Entries are added as URLs are discovered, and removed
+	 * with their URL.
 	 */
-	private final Map<Class<? extends Annotation>, Set<ClassMirror<?>>> classAnnotationCache = new HashMap<>();
+	private final Map<URL, Map<String, Set<ClassMirror<?>>>> annotationIndex = new HashMap<>();
 	/**
 	 * Cache for field annotations. Whenever a new URL is added to the URL
 	 * cache, this is cleared.
@@ -150,6 +160,21 @@ public class ClassDiscovery {
 	 */
 	private boolean debug;
 
+	/**
+	 * The parallelism new instances start with.
+	 */
+	private static volatile int defaultParallelism = Runtime.getRuntime().availableProcessors();
+	/**
+	 * How many threads may scan classes at once.
+	 */
+	private int parallelism = defaultParallelism;
+	/**
+	 * Scanning pools, one per parallelism, shared by every instance and
+	 * created on first use. Their workers are daemon threads that exit when
+	 * idle.
+	 */
+	private static final Map<Integer, ForkJoinPool> pools = new HashMap<>();
+
 	/**
 	 * May be null, but if set, is the cache retriever.
 	 */
@@ -267,6 +292,7 @@ public class ClassDiscovery {
 				}
 				//No need, already got a cache for this url
 				mirrors.addAll(preCaches.get(rootLocation).getClasses());
+				annotationIndex.remove(rootLocation);
 				return;
 			}
 			if(debug){
@@ -277,83 +303,300 @@ public class ClassDiscovery {
 				url = StringUtils.replaceLast(url, "!/", "");
 			}
 			if (url.startsWith("file:") && !url.endsWith(".jar")) {
-				final AtomicInteger id = new AtomicInteger(0);
-//				ExecutorService service = Executors.newFixedThreadPool(10, new ThreadFactory() {
-//					@Override
-//					public Thread newThread(Runnable r) {
-//						return new Thread(r, "ClassDiscovery-Async-" + id.incrementAndGet());
-//					}
-//				});
-
 				//Remove file: from the front
 				String root = url.substring(5);
 				rootLocationFile = new File(root);
-				List<File> fileList = new ArrayList<>();
-				descend(new File(root), fileList);
-
-				//Now, we have all the class files in the package. But, it's the absolute path
-				//to all of them. We have to first remove the "front" part
-				for (File f : fileList) {
-					String file = f.toString();
-					if (!file.matches(".*\\$(?:\\d)*\\.class") && file.endsWith(".class")) {
-						InputStream stream = null;
-						try {
-							stream = FileUtil.readAsStream(new File(rootLocationFile,
-									f.getAbsolutePath().replaceFirst(Pattern.quote(new File(root).getAbsolutePath() + File.separator), "")));
-							ClassMirror cm = new ClassMirror(stream, new URL(url));
-							mirrors.add(cm);
-						} catch (IOException ex) {
-							Logger.getLogger(ClassDiscovery.class.getName()).log(Level.SEVERE, null, ex);
-						} finally {
-							if (stream != null) {
-								try {
-									stream.close();
-								} catch (IOException ex) {
-									Logger.getLogger(ClassDiscovery.class.getName()).log(Level.SEVERE, null, ex);
-								}
+				try {
+					URL container = new URL(url);
+					if (parallelism > 1) {
+						getPool().invoke(new DirectoryScan(rootLocationFile, container, mirrors));
+					} else {
+						List<File> fileList = new ArrayList<>();
+						descend(rootLocationFile, fileList);
+						for (File f : fileList) {
+							if (isScannable(f.getName())) {
+								scanFile(f, container, mirrors);
 							}
 						}
 					}
+				} catch (MalformedURLException ex) {
+					Logger.getLogger(ClassDiscovery.class.getName()).log(Level.SEVERE, null, ex);
 				}
-//				service.shutdown();
-//				try {
-//					//Doesn't look like 0 is an option, so we'll just wait a day.
-//					service.awaitTermination(1, TimeUnit.DAYS);
-//				} catch (InterruptedException ex) {
-//					Logger.getLogger(ClassDiscovery.class.getName()).log(Level.SEVERE, null, ex);
-//				}
 			} else if (url.startsWith("file:") && url.endsWith(".jar")) {
 				//We are running from a jar
 				url = url.replaceFirst("file:", "");
 				rootLocationFile = new File(url);
-				ZipIterator zi = new ZipIterator(rootLocationFile);
 				try {
-					zi.iterate(new ZipIterator.ZipIteratorCallback() {
-						@Override
-						public void handle(String filename, InputStream in) {
-							if (!filename.matches(".*\\$(?:\\d)*\\.class") && filename.endsWith(".class")) {
-								try {
-									ClassMirror cm = new ClassMirror(in, rootLocationFile.toURI().toURL());
-									mirrors.add(cm);
-								} catch (IOException ex) {
-									Logger.getLogger(ClassDiscovery.class.getName()).log(Level.SEVERE, null, ex);
-								}
+					final URL container = rootLocationFile.toURI().toURL();
+					if (parallelism > 1) {
+						scanJar(rootLocationFile, container, mirrors);
+					} else {
+						ZipIterator zi = new ZipIterator(rootLocationFile);
+						zi.iterate(new ZipIterator.ZipIteratorCallback() {
+							@Override
+							public void handle(String filename, InputStream in) {
+								if (isScannable(filename)) {
+									try {
+										ClassMirror cm = new ClassMirror(in, container);
+										mirrors.add(cm);
+									} catch (IOException ex) {
+										Logger.getLogger(ClassDiscovery.class.getName()).log(Level.SEVERE, null, ex);
+									}
 
+								}
 							}
-						}
-					}, progressIterator);
+						}, progressIterator);
+					}
 				} catch (IOException ex) {
 					Logger.getLogger(ClassDiscovery.class.getName()).log(Level.SEVERE, null, ex);
 				}
 			} else {
 				throw new RuntimeException("Unknown url type: " + rootLocation);
 			}
+			annotationIndex.put(rootLocation, indexAnnotations(mirrors));
 		} finally {
 			if(debug){
 				System.out.println("Scans finished for " + rootLocation + ", taking " + (System.currentTimeMillis() - start) + " ms.");
 			}
 		}
 	}
+
+	/**
+	 * Maps each annotation's JVM name to the classes in mirrors that have it.
+	 */
+	private static Map<String, Set<ClassMirror<?>>> indexAnnotations(Set<ClassMirror<?>> mirrors) {
+		Map<String, Set<ClassMirror<?>>> index = new HashMap<>();
+		synchronized (mirrors) {
+			for (ClassMirror<?> m : mirrors) {
+				for (AnnotationMirror a : m.getAnnotations()) {
+					String name = a.getType().getJVMName();
+					Set<ClassMirror<?>> set = index.get(name);
+					if (set == null) {
+						set = new HashSet<>();
+						index.put(name, set);
+					}
+					set.add(m);
+				}
+			}
+		}
+		return index;
+	}
+
+	/**
+	 * Returns the classes in the given URL that have the given annotation.
+	 * The URL must already have been discovered.
+	 */
+	private synchronized Collection<ClassMirror<?>> getClassesWithAnnotation(URL url, String jvmName) {
+		Map<String, Set<ClassMirror<?>>> index = annotationIndex.get(url);
+		if (index == null) {
+			ClassDiscoveryURLCache cache = preCaches.get(url);
+			if (cache != null) {
+				return cache.getClassesWithAnnotation(jvmName);
+			}
+			//The pre cache was removed since discovery, so index what we have.
+			index = indexAnnotations(classCache.get(url));
+			annotationIndex.put(url, index);
+		}
+		Set<ClassMirror<?>> set = index.get(jvmName);
+		if (set == null) {
+			return Collections.emptySet();
+		}
+		return set;
+	}
+
+	/**
+	 * Matches anonymous classes, which are never scanned.
+	 */
+	private static final Pattern ANONYMOUS_CLASS = Pattern.compile(".*\\$(?:\\d)*\\.class");
+
+	/**
+	 * How many class files a single scanning task parses before splitting.
+	 */
+	private static final int SCAN_BATCH = 32;
+
+	private static boolean isScannable(String filename) {
+		return filename.endsWith(".class") && !ANONYMOUS_CLASS.matcher(filename).matches();
+	}
+
+	private static void scanFile(File file, URL container, Set<ClassMirror<?>> mirrors) {
+		try (InputStream stream = FileUtil.readAsStream(file)) {
+			mirrors.add(new ClassMirror(stream, container));
+		} catch (IOException ex) {
+			Logger.getLogger(ClassDiscovery.class.getName()).log(Level.SEVERE, null, ex);
+		}
+	}
+
+	/**
+	 * Scans a jar with random access, splitting its class entries among the
+	 * pool's workers.
+	 */
+	private void scanJar(File jar, URL container, Set<ClassMirror<?>> mirrors) throws IOException {
+		try (ZipFile zip = new ZipFile(jar)) {
+			List<ZipEntry> entries = new ArrayList<>();
+			Enumeration<? extends ZipEntry> e = zip.entries();
+			while (e.hasMoreElements()) {
+				ZipEntry entry = e.nextElement();
+				if (!entry.isDirectory() && isScannable(entry.getName())) {
+					entries.add(entry);
+				}
+			}
+			getPool().invoke(new JarScan(zip, entries, 0, entries.size(), container, mirrors,
+					progressIterator, new AtomicInteger()));
+		}
+	}
+
+	/**
+	 * Walks a directory, forking a task per subdirectory, and parsing the
+	 * class files found in batches.
+	 */
+	private static class DirectoryScan extends RecursiveAction {
+
+		private final File dir;
+		private final URL container;
+		private final Set<ClassMirror<?>> mirrors;
+
+		DirectoryScan(File dir, URL container, Set<ClassMirror<?>> mirrors) {
+			this.dir = dir;
+			this.container = container;
+			this.mirrors = mirrors;
+		}
+
+		@Override
+		protected void compute() {
+			File[] list = dir.listFiles();
+			if (list == null) {
+				System.out.println("Could not list files in " + dir);
+				return;
+			}
+			List<RecursiveAction> tasks = new ArrayList<>();
+			List<File> batch = new ArrayList<>();
+			for (File child : list) {
+				if (child.isDirectory()) {
+					tasks.add(new DirectoryScan(child, container, mirrors));
+				} else if (isScannable(child.getName())) {
+					batch.add(child);
+					if (batch.size() >= SCAN_BATCH) {
+						tasks.add(new FileBatch(batch, container, mirrors));
+						batch = new ArrayList<>();
+					}
+				}
+			}
+			if (!batch.isEmpty()) {
+				tasks.add(new FileBatch(batch, container, mirrors));
+			}
+			invokeAll(tasks);
+		}
+	}
+
+	private static class FileBatch extends RecursiveAction {
+
+		private final List<File> files;
+		private final URL container;
+		private final Set<ClassMirror<?>> mirrors;
+
+		FileBatch(List<File> files, URL container, Set<ClassMirror<?>> mirrors) {
+			this.files = files;
+			this.container = container;
+			this.mirrors = mirrors;
+		}
+
+		@Override
+		protected void compute() {
+			for (File f : files) {
+				scanFile(f, container, mirrors);
+			}
+		}
+	}
+
+	/**
+	 * Parses a range of a jar's entries, halving the range until it is
+	 * small enough to do directly.
+	 */
+	private static class JarScan extends RecursiveAction {
+
+		private final ZipFile zip;
+		private final List<ZipEntry> entries;
+		private final int start;
+		private final int end;
+		private final URL container;
+		private final Set<ClassMirror<?>> mirrors;
+		private final ProgressIterator progress;
+		private final AtomicInteger done;
+
+		JarScan(ZipFile zip, List<ZipEntry> entries, int start, int end, URL container,
+				Set<ClassMirror<?>> mirrors, ProgressIterator progress, AtomicInteger done) {
+			this.zip = zip;
+			this.entries = entries;
+			this.start = start;
+			this.end = end;
+			this.container = container;
+			this.mirrors = mirrors;
+			this.progress = progress;
+			this.done = done;
+		}
+
+		@Override
+		protected void compute() {
+			if (end - start > SCAN_BATCH) {
+				int mid = (start + end) >>> 1;
+				invokeAll(new JarScan(zip, entries, start, mid, container, mirrors, progress, done),
+						new JarScan(zip, entries, mid, end, container, mirrors, progress, done));
+				return;
+			}
+			for (int i = start; i < end; i++) {
+				try (InputStream in = zip.getInputStream(entries.get(i))) {
+					mirrors.add(new ClassMirror(in, container));
+				} catch (IOException ex) {
+					Logger.getLogger(ClassDiscovery.class.getName()).log(Level.SEVERE, null, ex);
+				}
+			}
+			if (progress == null) {
+				done.addAndGet(end - start);
+			} else {
+				//Workers finish in any order, so report one at a time, and
+				//count under the same lock so the totals only go up.
+				synchronized (progress) {
+					progress.progressChanged(done.addAndGet(end - start), entries.size());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Sets how many threads may scan classes at once. 1 scans sequentially,
+	 * on the calling thread. Defaults to the number of processors.
+	 *
+	 * @param parallelism
+	 */
+	public synchronized void setParallelism(int parallelism) {
+		this.parallelism = Math.max(1, parallelism);
+	}
+
+	/**
+	 * Sets the parallelism that instances created after this call start
+	 * with. 0 or less means the number of processors.
+	 *
+	 * @param parallelism
+	 */
+	public static void setDefaultParallelism(int parallelism) {
+		defaultParallelism = parallelism > 0 ? parallelism : Runtime.getRuntime().availableProcessors();
+	}
+
+	private ForkJoinPool getPool() {
+		int size;
+		synchronized (this) {
+			size = parallelism;
+		}
+		synchronized (pools) {
+			ForkJoinPool pool = pools.get(size);
+			if (pool == null) {
+				pool = new ForkJoinPool(size);
+				pools.put(size, pool);
+			}
+			return pool;
+		}
+	}
+
 	private ClassLoader defaultClassLoader = null;
 
 	/**
@@ -397,7 +640,9 @@ public class ClassDiscovery {
 		}
 		urlCache.add(url);
 		dirtyURLs.add(url);
-		classCache.put(url, new HashSet<ClassMirror<?>>());
+		//Synchronized, as discovery may fill it from several threads.
+		classCache.put(url, Collections.synchronizedSet(new HashSet<ClassMirror<?>>()));
+		clearLookupCaches();
 	}
 
 	/**
@@ -421,7 +666,9 @@ public class ClassDiscovery {
 	}
 
 	/**
-	 * Remove a discovery URL. Will invalidate caches.
+	 * Remove a discovery URL. The classes and annotation index for the URL
+	 * are dropped, and the lookup caches cleared, but other URLs are not
+	 * discovered again.
 	 *
 	 * @param url
 	 */
@@ -438,8 +685,10 @@ public class ClassDiscovery {
 		urlCache.remove(url);
 		dirtyURLs.remove(url);
 		preCaches.remove(url);
+		classCache.remove(url);
+		annotationIndex.remove(url);
 
-		invalidateCaches();
+		clearLookupCaches();
 	}
 
 	/**
@@ -450,15 +699,24 @@ public class ClassDiscovery {
 	 * classes during the course of using this instance need to be garbage
 	 * collected.
 	 */
-	public void invalidateCaches() {
+	public synchronized void invalidateCaches() {
 		classCache.clear();
+		annotationIndex.clear();
+		clearLookupCaches();
+		dirtyURLs.addAll(urlCache);
+	}
+
+	/**
+	 * Clears the caches of query results, which are built from the classes
+	 * in every URL, and so are out of date once a URL is added or removed.
+	 */
+	private void clearLookupCaches() {
 		forNameCache.clear();
 		jvmNameToMirror.clear();
 		fuzzyClassCache.clear();
-		classAnnotationCache.clear();
+		classSubtypeCache.clear();
 		fieldAnnotationCache.clear();
 		methodAnnotationCache.clear();
-		dirtyURLs.addAll(urlCache);
 	}
 
 	/**
@@ -687,17 +945,12 @@ public class ClassDiscovery {
 	 * @return
 	 */
 	public Set<ClassMirror<?>> getClassesWithAnnotation(Class<? extends Annotation> annotation) {
-		if (classAnnotationCache.containsKey(annotation)) {
-			return new HashSet<>(classAnnotationCache.get(annotation));
-		}
 		doDiscovery();
+		String jvmName = ClassUtils.getJVMName(annotation);
 		Set<ClassMirror<?>> mirrors = new HashSet<>();
-		for (ClassMirror m : getKnownClasses()) {
-			if (m.hasAnnotation(annotation)) {
-				mirrors.add(m);
-			}
+		for (URL url : urlCache) {
+			mirrors.addAll(getClassesWithAnnotation(url, jvmName));
 		}
-		classAnnotationCache.put(annotation, mirrors);
 		return mirrors;
 	}
 
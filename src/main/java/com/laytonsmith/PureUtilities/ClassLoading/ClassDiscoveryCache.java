@@ -3,22 +3,30 @@ package com.laytonsmith.PureUtilities.ClassLoading;
 
 import com.laytonsmith.PureUtilities.Common.StringUtils;
 import com.laytonsmith.PureUtilities.ProgressIterator;
-import com.laytonsmith.PureUtilities.ZipReader;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.net.URL;
 import java.net.URLDecoder;
 import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
 import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipOutputStream;
+import java.util.regex.Pattern;
 
 /**
  * This file represents a location on disk that can be used by the ClassDiscovery
@@ -37,9 +45,23 @@ public class ClassDiscoveryCache {
 	public static final String OUTPUT_FILENAME = "jarInfo.ser";
 	
 	/**
-	 * How much of the file we read in to hash to check for collisions.
+	 * The manifest file, which records the size, modification time and
+	 * content hash of each jar last cached, so unchanged jars need not be
+	 * hashed again.
 	 */
-	private static final int READ_SIZE = 2048;
+	public static final String MANIFEST_FILENAME = "manifest.txt";
+
+	/**
+	 * Cache entries are named after the hex content hash of their jar.
+	 * Older versions used an MD5 of the jar's first few bytes instead.
+	 */
+	private static final Pattern ENTRY_NAME = Pattern.compile("[0-9A-F]{32}|[0-9A-F]{64}");
+
+	/**
+	 * Guards the manifest, which may be shared between instances using the
+	 * same directory.
+	 */
+	private static final Object MANIFEST_LOCK = new Object();
 
 	private File cacheDir;
 	private ProgressIterator progress;
@@ -64,7 +86,8 @@ public class ClassDiscoveryCache {
 	
 	/**
 	 * Given a file location, retrieves the ClassDiscoveryURLCache from it.
-	 * If it is a jar, the file is hashed, and checked for a local cache copy, 
+	 * If it is a jar, the file is hashed (unless the manifest shows it unchanged),
+	 * and checked for a local cache copy, 
 	 * and if one exists, that cache is returned. 
 	 * If not, the jar is scanned for a jarInfo.ser. If one exists, it is returned.
 	 * Otherwise, the jar is scanned, a local cache is saved to disk, then returned.
@@ -83,24 +106,13 @@ public class ClassDiscoveryCache {
 			try {
 				File jarFile = new File(URLDecoder.decode(fromClassLocation.getFile(), "UTF8"));
 				
-				byte[] data;
-				try (FileInputStream fis = new FileInputStream(jarFile)) {
-					data = new byte[READ_SIZE];
-					fis.read(data);
-				}
-				
-				MessageDigest digest = java.security.MessageDigest.getInstance("MD5");
-				digest.update(data);
-				
-				String fileName = StringUtils.toHex(digest.digest());
+				String fileName = getKey(jarFile);
 				cacheOutputName = new File(cacheDir, fileName);
 				if(cacheOutputName.exists()){
 					//Cool, already exists, so we'll just return this.
-					//Note that we write the data out as a zip, since it is
-					//huge otherwise, and compresses quite well, so we have 
-					//to read it in as a zip now.
-					ZipReader cacheReader = new ZipReader(new File(cacheOutputName, "data"));
-					return new ClassDiscoveryURLCache(fromClassLocation, cacheReader.getInputStream());
+					//The descriptor is stored uncompressed, so that it can be
+					//memory mapped, and only the classes used get read.
+					return new ClassDiscoveryURLCache(fromClassLocation, cacheOutputName);
 				}
 				//Doesn't exist, but we set cacheOutputName, so it will save it there
 				//after it scans.
@@ -136,12 +148,19 @@ public class ClassDiscoveryCache {
 			ClassDiscoveryURLCache cache = new ClassDiscoveryURLCache(fromClassLocation, progress);
 			
 			if(cacheOutputName != null){
+				//Written to a temp file first, so a crash or a full disk can't
+				//leave a truncated descriptor under the real name.
+				File temp = new File(cacheOutputName.getPath() + ".tmp");
 				try {
-					try (ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(cacheOutputName, false))) {
-						zos.putNextEntry(new ZipEntry("data"));
-						cache.writeDescriptor(zos);
+					cache.writeDescriptor(new BufferedOutputStream(new FileOutputStream(temp, false)));
+					if(!temp.renameTo(cacheOutputName)){
+						cacheOutputName.delete();
+						if(!temp.renameTo(cacheOutputName)){
+							throw new IOException("Could not replace " + cacheOutputName);
+						}
 					}
 				} catch (IOException ex) {
+					temp.delete();
 					//Well, we couldn't write it out, so report the error, but continue anyways.
 					if(logger != null){
 						logger.log(Level.SEVERE, null, ex);
@@ -158,6 +177,129 @@ public class ClassDiscoveryCache {
 		}
 	}
 	
+	/**
+	 * Returns the cache key for a jar. If the manifest shows the jar's size
+	 * and modification time unchanged since it was last hashed, the hash
+	 * recorded then is used without reading the jar. Otherwise the whole jar
+	 * is hashed, and the manifest is updated, evicting cache entries no
+	 * longer referenced by it.
+	 * @param jarFile
+	 * @return
+	 * @throws IOException
+	 * @throws NoSuchAlgorithmException
+	 */
+	private String getKey(File jarFile) throws IOException, NoSuchAlgorithmException {
+		String path = jarFile.getCanonicalPath();
+		long size = jarFile.length();
+		long modified = jarFile.lastModified();
+		synchronized(MANIFEST_LOCK){
+			Map<String, ManifestEntry> manifest = readManifest();
+			ManifestEntry entry = manifest.get(path);
+			if(entry != null && entry.size == size && entry.modified == modified){
+				return entry.hash;
+			}
+			String hash = hash(jarFile);
+			manifest.put(path, new ManifestEntry(hash, size, modified));
+			writeManifest(manifest);
+			evict(manifest);
+			return hash;
+		}
+	}
+
+	private static String hash(File file) throws IOException, NoSuchAlgorithmException {
+		MessageDigest digest = MessageDigest.getInstance("SHA-256");
+		byte[] buffer = new byte[64 * 1024];
+		try (InputStream in = new FileInputStream(file)) {
+			int read;
+			while((read = in.read(buffer)) != -1){
+				digest.update(buffer, 0, read);
+			}
+		}
+		return StringUtils.toHex(digest.digest());
+	}
+
+	private static final class ManifestEntry {
+		final String hash;
+		final long size;
+		final long modified;
+
+		ManifestEntry(String hash, long size, long modified){
+			this.hash = hash;
+			this.size = size;
+			this.modified = modified;
+		}
+	}
+
+	/**
+	 * Reads the manifest, dropping entries for jars that no longer exist.
+	 */
+	private Map<String, ManifestEntry> readManifest(){
+		Map<String, ManifestEntry> manifest = new HashMap<>();
+		File file = new File(cacheDir, MANIFEST_FILENAME);
+		if(!file.exists()){
+			return manifest;
+		}
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"))) {
+			String line;
+			while((line = reader.readLine()) != null){
+				//hash, size, modified, path
+				String[] parts = line.split("\t", 4);
+				if(parts.length != 4 || !new File(parts[3]).exists()){
+					continue;
+				}
+				try {
+					manifest.put(parts[3], new ManifestEntry(parts[0], Long.parseLong(parts[1]), Long.parseLong(parts[2])));
+				} catch (NumberFormatException ex) {
+					//Skip it, it'll just be hashed again.
+				}
+			}
+		} catch (IOException ex) {
+			//Start over with an empty manifest.
+		}
+		return manifest;
+	}
+
+	private void writeManifest(Map<String, ManifestEntry> manifest) throws IOException {
+		cacheDir.mkdirs();
+		File file = new File(cacheDir, MANIFEST_FILENAME);
+		File temp = new File(cacheDir, MANIFEST_FILENAME + ".tmp");
+		try (Writer writer = new OutputStreamWriter(new FileOutputStream(temp, false), "UTF-8")) {
+			for(Map.Entry<String, ManifestEntry> e : manifest.entrySet()){
+				ManifestEntry entry = e.getValue();
+				writer.write(entry.hash + "\t" + entry.size + "\t" + entry.modified + "\t" + e.getKey() + "\n");
+			}
+		}
+		if(!temp.renameTo(file)){
+			file.delete();
+			if(!temp.renameTo(file)){
+				throw new IOException("Could not replace " + file);
+			}
+		}
+	}
+
+	/**
+	 * Deletes cache entries that the manifest no longer refers to, such as
+	 * those for jars since rebuilt or removed.
+	 */
+	private void evict(Map<String, ManifestEntry> manifest){
+		Set<String> live = new HashSet<>();
+		for(ManifestEntry entry : manifest.values()){
+			live.add(entry.hash);
+		}
+		File[] files = cacheDir.listFiles();
+		if(files == null){
+			return;
+		}
+		for(File f : files){
+			if(f.isFile() && ENTRY_NAME.matcher(f.getName()).matches() && !live.contains(f.getName())){
+				if(logger != null){
+					logger.log(Level.INFO, "Evicting stale class cache {0}", f.getName());
+				}
+				f.delete();
+			}
+		}
+	}
+
 	public void setProgressIterator(ProgressIterator progress){
 		this.progress = progress;
 	}
@@ -1,27 +1,49 @@
 
 package com.laytonsmith.PureUtilities.ClassLoading;
 
+import com.laytonsmith.PureUtilities.ClassLoading.ClassMirror.AnnotationMirror;
 import com.laytonsmith.PureUtilities.ClassLoading.ClassMirror.ClassMirror;
+import com.laytonsmith.PureUtilities.ClassLoading.ClassMirror.DescriptorFormat;
 import com.laytonsmith.PureUtilities.Common.ReflectionUtils;
 import com.laytonsmith.PureUtilities.ProgressIterator;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * This file represents a jar, and can tell you what annotations
  * are available on each class, method, and field. This class has methods
- * to serialize and deserialize from json, a descriptor, which can be used to
- * rebuild this class with.
+ * to serialize and deserialize from a descriptor, which can be used to
+ * rebuild this class with. See {@link DescriptorFormat} for the descriptor's
+ * format.
  */
 public class ClassDiscoveryURLCache {
 	
 	private final List<ClassMirror<?>> list;
+	
+	/**
+	 * If this was loaded from a descriptor, the descriptor, otherwise null.
+	 */
+	private final DescriptorFormat descriptor;
+	
+	/**
+	 * If this wasn't loaded from a descriptor, maps annotation JVM names to
+	 * the classes with that annotation. Built on first use.
+	 */
+	private Map<String, List<ClassMirror<?>>> annotated;
 
 	/**
 	 * Creates a new ClassDiscoveryURLCache. This operation may
@@ -42,6 +64,7 @@ public class ClassDiscoveryURLCache {
 	 */
 	public ClassDiscoveryURLCache(URL url, ProgressIterator progress){
 		list = new ArrayList<ClassMirror<?>>();
+		descriptor = null;
 		ClassDiscovery discovery = new ClassDiscovery();
 		discovery.setProgressIterator(progress);
 		//Double check to ensure that this is null, otherwise
@@ -59,15 +82,31 @@ public class ClassDiscoveryURLCache {
 	 * Creates a new ClassDiscoveryURLCache object from a descriptor that was
 	 * created earlier with writeDescriptor. The url may be null, but if
 	 * provided, will be used as a fallback in case an error occurs
-	 * with the descriptor.
+	 * with the descriptor. Descriptors written by older versions, which were
+	 * java serialized lists of mirrors, are still accepted.
 	 * @param url
 	 * @param descriptor
 	 * @throws IOException 
 	 * @throws java.lang.ClassNotFoundException 
 	 */
 	public ClassDiscoveryURLCache(URL url, InputStream descriptor) throws IOException, ClassNotFoundException{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		byte[] buffer = new byte[8192];
+		int read;
+		while((read = descriptor.read(buffer)) != -1){
+			bytes.write(buffer, 0, read);
+		}
+		descriptor.close();
+		byte[] raw = bytes.toByteArray();
+		ByteBuffer data = ByteBuffer.wrap(raw);
+		if(DescriptorFormat.isDescriptor(data)){
+			this.descriptor = new DescriptorFormat(data, url);
+			this.list = this.descriptor.getClasses();
+			return;
+		}
+		this.descriptor = null;
 		List<ClassMirror<?>> _list;
-		ObjectInputStream ois = new ObjectInputStream(descriptor);
+		ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(raw));
 		try {
 			_list = (List<ClassMirror<?>>) ois.readObject();
 		} catch(ClassNotFoundException ex){
@@ -87,10 +126,44 @@ public class ClassDiscoveryURLCache {
 		this.list = _list;
 	}
 	
+	/**
+	 * Creates a new ClassDiscoveryURLCache object from a descriptor file
+	 * that was created earlier with writeDescriptor. The file is memory
+	 * mapped, and each class is only read from it once it is used.
+	 * @param url
+	 * @param descriptor
+	 * @throws IOException If the file could not be read, or isn't a
+	 * descriptor of the current version.
+	 */
+	public ClassDiscoveryURLCache(URL url, File descriptor) throws IOException{
+		try (RandomAccessFile file = new RandomAccessFile(descriptor, "r");
+				FileChannel channel = file.getChannel()) {
+			//Check the header before mapping, so a file that's about to be
+			//overwritten isn't left mapped.
+			ByteBuffer header = ByteBuffer.allocate(4);
+			channel.read(header, 0);
+			header.flip();
+			if(!DescriptorFormat.isDescriptor(header)){
+				throw new IOException(descriptor + " is not a class descriptor");
+			}
+			//The mapping stays valid after the channel is closed.
+			this.descriptor = new DescriptorFormat(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), url);
+		}
+		this.list = this.descriptor.getClasses();
+	}
+	
+	/**
+	 * Writes out this cache as a descriptor, which can later be read back in
+	 * with either the InputStream or the File constructor.
+	 * @param out
+	 * @throws IOException 
+	 */
 	public void writeDescriptor(OutputStream out) throws IOException{
-		ObjectOutputStream oos = new ObjectOutputStream(out);
-		oos.writeObject(list);
-		oos.close();
+		try {
+			DescriptorFormat.write(list, out);
+		} finally {
+			out.close();
+		}
 	}
 	
 	@Override
@@ -106,6 +179,40 @@ public class ClassDiscoveryURLCache {
 		return list;
 	}
 	
+	/**
+	 * Package private. Returns the classes in this cache with the given
+	 * annotation. If this was loaded from a descriptor, its annotation
+	 * records are used, and no other classes are loaded.
+	 * @param jvmName The JVM name of the annotation.
+	 * @return
+	 */
+	/* package */ synchronized List<ClassMirror<?>> getClassesWithAnnotation(String jvmName){
+		if(descriptor != null){
+			return descriptor.getClassesWithAnnotation(jvmName);
+		}
+		if(annotated == null){
+			annotated = new HashMap<>();
+			for(ClassMirror<?> m : list){
+				for(AnnotationMirror a : m.getAnnotations()){
+					String type = a.getType().getJVMName();
+					List<ClassMirror<?>> classes = annotated.get(type);
+					if(classes == null){
+						classes = new ArrayList<>();
+						annotated.put(type, classes);
+					}
+					if(classes.isEmpty() || classes.get(classes.size() - 1) != m){
+						classes.add(m);
+					}
+				}
+			}
+		}
+		List<ClassMirror<?>> ret = annotated.get(jvmName);
+		if(ret == null){
+			return Collections.emptyList();
+		}
+		return Collections.unmodifiableList(ret);
+	}
+	
 	/**
 	 * Returns the classes in this cache.
 	 * @return 
@@ -9,6 +9,7 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.lang.annotation.Annotation;
 import java.lang.annotation.RetentionPolicy;
@@ -37,7 +38,7 @@ import org.objectweb.asm.Opcodes;
  */
 public class ClassMirror<T> implements Serializable {
 	private static final long serialVersionUID = 1L;
-	private final ClassInfo info = new ClassInfo();
+	/* package */ final ClassInfo info = new ClassInfo();
 	//Transient, because it's only used during construction
 	private final transient org.objectweb.asm.ClassReader reader;
 	
@@ -53,6 +54,14 @@ public class ClassMirror<T> implements Serializable {
 	**/
 	private final URL originalURL;
 	
+	/**
+	 * If this was read from a descriptor, the descriptor and this class's
+	 * record in it. Everything but the name is read from the record the first
+	 * time it is needed, after which these are cleared.
+	 */
+	private transient volatile DescriptorFormat descriptor;
+	private transient int record;
+	
 	/**
 	 * Creates a ClassMirror object for a given input stream representing
 	 * a class file.
@@ -94,6 +103,45 @@ public class ClassMirror<T> implements Serializable {
 		originalURL = ClassDiscovery.GetClassContainer(c);
 	}
 	
+	/**
+	 * Creates a ClassMirror whose details are read from a descriptor as they
+	 * are needed. Only the name is known up front.
+	 * @param descriptor
+	 * @param record
+	 * @param name
+	 * @param container 
+	 */
+	/* package */ ClassMirror(DescriptorFormat descriptor, int record, String name, URL container){
+		reader = null;
+		underlyingClass = null;
+		originalURL = container;
+		info.name = name;
+		this.descriptor = descriptor;
+		this.record = record;
+	}
+	
+	/**
+	 * Returns the class info, first reading it from the descriptor if this
+	 * mirror came from one and hasn't been read yet.
+	 * @return 
+	 */
+	/* package */ ClassInfo getInfo(){
+		if(descriptor != null){
+			synchronized(info){
+				if(descriptor != null){
+					descriptor.read(record, info);
+					descriptor = null;
+				}
+			}
+		}
+		return info;
+	}
+	
+	private void writeObject(ObjectOutputStream out) throws IOException {
+		getInfo();
+		out.defaultWriteObject();
+	}
+	
 	private void parse(){
 		reader.accept(info, org.objectweb.asm.ClassReader.SKIP_CODE 
 				| org.objectweb.asm.ClassReader.SKIP_DEBUG 
@@ -116,7 +164,7 @@ public class ClassMirror<T> implements Serializable {
 		if(underlyingClass != null){
 			return new ModifierMirror(underlyingClass.getModifiers());
 		}
-		return info.modifiers;
+		return getInfo().modifiers;
 	}
 	
 	/**
@@ -152,7 +200,7 @@ public class ClassMirror<T> implements Serializable {
 		if(underlyingClass != null){
 			return underlyingClass.isEnum();
 		}
-		return info.isEnum;
+		return getInfo().isEnum;
 	}
 	
 	/**
@@ -163,7 +211,7 @@ public class ClassMirror<T> implements Serializable {
 		if(underlyingClass != null){
 			return underlyingClass.isInterface();
 		}
-		return info.isInterface;
+		return getInfo().isInterface;
 	}
 	
 	/**
@@ -174,7 +222,7 @@ public class ClassMirror<T> implements Serializable {
 		if(underlyingClass != null){
 			return (underlyingClass.getModifiers() & Modifier.ABSTRACT) > 0;
 		}
-		return info.modifiers.isAbstract();
+		return getInfo().modifiers.isAbstract();
 	}
 	
 	/**
@@ -185,7 +233,7 @@ public class ClassMirror<T> implements Serializable {
 		if(underlyingClass != null){
 			return ClassReferenceMirror.fromClass(underlyingClass.getSuperclass());
 		}
-		return new ClassReferenceMirror("L" + info.superClass + ";");
+		return new ClassReferenceMirror("L" + getInfo().superClass + ";");
 	}
 	
 	/**
@@ -200,7 +248,7 @@ public class ClassMirror<T> implements Serializable {
 				l.add(ClassReferenceMirror.fromClass(inter));
 			}
 		} else {
-			for(String inter : info.interfaces){
+			for(String inter : getInfo().interfaces){
 				l.add(new ClassReferenceMirror("L" + inter + ";"));
 			}
 		}
@@ -217,7 +265,7 @@ public class ClassMirror<T> implements Serializable {
 			return underlyingClass.getAnnotation(annotation) != null;
 		}
 		String name = ClassUtils.getJVMName(annotation);
-		for(AnnotationMirror a : info.annotations){
+		for(AnnotationMirror a : getInfo().annotations){
 			if(a.getType().getJVMName().equals(name)){
 				return true;
 			}
@@ -243,7 +291,7 @@ public class ClassMirror<T> implements Serializable {
 			return hasAnnotation(annotation);
 		}
 		String name = ClassUtils.getJVMName(annotation);
-		for(AnnotationMirror a : info.annotations){
+		for(AnnotationMirror a : getInfo().annotations){
 			if(a.getType().getJVMName().equals(name)){
 				return a.isVisible();
 			}
@@ -265,7 +313,7 @@ public class ClassMirror<T> implements Serializable {
 			return new AnnotationMirror(ann);
 		}
 		String name = ClassUtils.getJVMName(clazz);
-		for(AnnotationMirror a : info.annotations){
+		for(AnnotationMirror a : getInfo().annotations){
 			if(a.getType().getJVMName().equals(name)){
 				return a;
 			}
@@ -285,7 +333,7 @@ public class ClassMirror<T> implements Serializable {
 			}
 			return list;
 		}
-		return new ArrayList<>(info.annotations);
+		return new ArrayList<>(getInfo().annotations);
 	}
 	
 	/**
@@ -325,7 +373,7 @@ public class ClassMirror<T> implements Serializable {
 			}
 			return fields;
 		}
-		return info.fields.toArray(new FieldMirror[info.fields.size()]);
+		return getInfo().fields.toArray(new FieldMirror[getInfo().fields.size()]);
 	}
 	
 	/**
@@ -358,7 +406,7 @@ public class ClassMirror<T> implements Serializable {
 			}
 			return mirrors;
 		}
-		return info.methods.toArray(new MethodMirror[info.methods.size()]);
+		return getInfo().methods.toArray(new MethodMirror[getInfo().methods.size()]);
 	}
 	
 	/**
@@ -411,7 +459,7 @@ public class ClassMirror<T> implements Serializable {
 			return underlyingClass;
 		}
 		try{
-			return (Class<T>)info.classReferenceMirror.loadClass();
+			return (Class<T>)getInfo().classReferenceMirror.loadClass();
 		} catch(ClassNotFoundException ex){
 			throw new NoClassDefFoundError();
 		}
@@ -431,7 +479,7 @@ public class ClassMirror<T> implements Serializable {
 			return underlyingClass;
 		}
 		try{
-			return info.classReferenceMirror.loadClass(loader, initialize);
+			return getInfo().classReferenceMirror.loadClass(loader, initialize);
 		} catch(ClassNotFoundException ex){
 			throw new NoClassDefFoundError(ex.getMessage());
 		}
@@ -454,10 +502,10 @@ public class ClassMirror<T> implements Serializable {
 			return (underlyingClass.getSuperclass() == superClass);
 		}
 		String name = superClass.getName().replace(".", "/");
-		if(info.superClass.equals(name)){
+		if(getInfo().superClass.equals(name)){
 			return true;
 		}
-		for(String in : info.interfaces){
+		for(String in : getInfo().interfaces){
 			if(in.equals(name)){
 				return true;
 			}
@@ -548,7 +596,7 @@ public class ClassMirror<T> implements Serializable {
 	}
 
 	
-	private static class ClassInfo implements ClassVisitor, Serializable {
+	/* package */ static class ClassInfo implements ClassVisitor, Serializable {
 		private static final long serialVersionUID = 1L;
 		
 		public ModifierMirror modifiers;
@@ -0,0 +1,568 @@
+package com.laytonsmith.PureUtilities.ClassLoading.ClassMirror;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.objectweb.asm.Opcodes;
+
+/**
+ * Reads and writes a set of ClassMirrors in a compact binary format, which
+ * can be read straight out of a (possibly memory mapped) buffer. Only the
+ * class names are read up front, each mirror reads the rest of its record the
+ * first time it is used, so the cost of loading a descriptor depends on the
+ * classes actually looked at, not on how many there are.
+ * <p>
+ * The layout is, with all ints big endian:
+ * <pre>
+ * header:      magic, version, string count, class count, annotation count,
+ *              string data start, class data start, annotation data start
+ * offsets:     one int per string, then one per class, each relative to the
+ *              start of its data section
+ * strings:     length, then that many bytes of UTF-8
+ * classes:     name, access, super name, interfaces, annotations, fields, methods
+ * annotations: for each class level annotation type, the type and the
+ *              indexes of the classes that have it
+ * </pre>
+ * Every name and type is an index into the string table, -1 standing for
+ * null.
+ */
+public final class DescriptorFormat {
+
+	/**
+	 * The first four bytes of every descriptor.
+	 */
+	public static final int MAGIC = 0x43444D44;
+
+	/**
+	 * The current version of the format. Descriptors of any other version
+	 * are rejected, and should just be regenerated.
+	 */
+	public static final int VERSION = 1;
+
+	private static final int HEADER_SIZE = 8 * 4;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final byte NULL = 0;
+	private static final byte STRING = 1;
+	private static final byte INT = 2;
+	private static final byte LONG = 3;
+	private static final byte FLOAT = 4;
+	private static final byte DOUBLE = 5;
+	private static final byte BOOLEAN = 6;
+	private static final byte BYTE = 7;
+	private static final byte CHAR = 8;
+	private static final byte SHORT = 9;
+	private static final byte CLASS = 10;
+	/**
+	 * Anything else, such as arrays, is java serialized.
+	 */
+	private static final byte SERIALIZED = 11;
+
+	private static final byte VARARG = 1;
+	private static final byte SYNTHETIC = 2;
+
+	private final ByteBuffer buffer;
+	private final URL container;
+	private final int stringCount;
+	private final int classCount;
+	private final int annotationCount;
+	private final int stringStart;
+	private final int classStart;
+	private final int annotationStart;
+	private final String[] strings;
+	private final List<ClassMirror<?>> classes;
+	private Map<String, List<ClassMirror<?>>> annotated;
+
+	/**
+	 * Returns true if the buffer, from its current position, starts with
+	 * the descriptor magic number. The buffer's position is not changed.
+	 * @param buffer
+	 * @return
+	 */
+	public static boolean isDescriptor(ByteBuffer buffer){
+		return buffer.remaining() >= 4 && buffer.getInt(buffer.position()) == MAGIC;
+	}
+
+	/**
+	 * Opens a descriptor. The buffer must not be modified afterwards, as
+	 * mirrors continue to read from it until they have been fully loaded.
+	 * @param buffer The descriptor, starting at position 0.
+	 * @param container The URL that the described classes were found in.
+	 * @throws IOException If this isn't a descriptor, or is of a different version.
+	 */
+	public DescriptorFormat(ByteBuffer buffer, URL container) throws IOException {
+		this.buffer = buffer;
+		this.container = container;
+		if(buffer.limit() < HEADER_SIZE || buffer.getInt(0) != MAGIC){
+			throw new IOException("Not a class descriptor");
+		}
+		int version = buffer.getInt(4);
+		if(version != VERSION){
+			throw new IOException("Unsupported class descriptor version " + version);
+		}
+		stringCount = buffer.getInt(8);
+		classCount = buffer.getInt(12);
+		annotationCount = buffer.getInt(16);
+		stringStart = buffer.getInt(20);
+		classStart = buffer.getInt(24);
+		annotationStart = buffer.getInt(28);
+		if(stringCount < 0 || classCount < 0 || annotationCount < 0
+				|| HEADER_SIZE + 4L * (stringCount + classCount) > stringStart
+				|| stringStart > classStart || classStart > annotationStart
+				|| annotationStart > buffer.limit()){
+			throw new IOException("Corrupt class descriptor");
+		}
+		//Check every offset now, so a damaged file is rejected here rather
+		//than failing whenever one of its classes happens to be read.
+		for(int i = 0; i < stringCount; i++){
+			int pos = stringStart + buffer.getInt(HEADER_SIZE + 4 * i);
+			if(pos < stringStart || pos > classStart - 4 || buffer.getInt(pos) < 0
+					|| pos + 4L + buffer.getInt(pos) > classStart){
+				throw new IOException("Corrupt class descriptor");
+			}
+		}
+		int[] records = new int[classCount];
+		for(int i = 0; i < classCount; i++){
+			int record = classStart + buffer.getInt(HEADER_SIZE + 4 * (stringCount + i));
+			if(record < classStart || record > annotationStart - 4){
+				throw new IOException("Corrupt class descriptor");
+			}
+			int name = buffer.getInt(record);
+			if(name < -1 || name >= stringCount){
+				throw new IOException("Corrupt class descriptor");
+			}
+			records[i] = record;
+		}
+		long pos = annotationStart;
+		for(int i = 0; i < annotationCount; i++){
+			if(pos + 8 > buffer.limit()){
+				throw new IOException("Corrupt class descriptor");
+			}
+			int type = buffer.getInt((int) pos);
+			int count = buffer.getInt((int) pos + 4);
+			if(type < 0 || type >= stringCount || count < 0 || pos + 8 + 4L * count > buffer.limit()){
+				throw new IOException("Corrupt class descriptor");
+			}
+			pos += 8;
+			for(int j = 0; j < count; j++, pos += 4){
+				int index = buffer.getInt((int) pos);
+				if(index < 0 || index >= classCount){
+					throw new IOException("Corrupt class descriptor");
+				}
+			}
+		}
+		strings = new String[stringCount];
+		List<ClassMirror<?>> list = new ArrayList<>(classCount);
+		for(int i = 0; i < classCount; i++){
+			list.add(new ClassMirror<>(this, records[i], string(buffer.getInt(records[i])), container));
+		}
+		classes = Collections.unmodifiableList(list);
+	}
+
+	/**
+	 * Returns the classes in this descriptor. None of them have been loaded
+	 * beyond their names yet.
+	 * @return
+	 */
+	public List<ClassMirror<?>> getClasses(){
+		return classes;
+	}
+
+	/**
+	 * Returns the URL the classes in this descriptor were found in.
+	 * @return
+	 */
+	public URL getContainer(){
+		return container;
+	}
+
+	/**
+	 * Returns the classes that are annotated with the given annotation,
+	 * using the annotation records rather than loading every class.
+	 * @param jvmName The JVM name of the annotation, for instance
+	 * Ljava/lang/Deprecated;
+	 * @return
+	 */
+	public synchronized List<ClassMirror<?>> getClassesWithAnnotation(String jvmName){
+		if(annotated == null){
+			Map<String, List<ClassMirror<?>>> map = new HashMap<>();
+			int pos = annotationStart;
+			for(int i = 0; i < annotationCount; i++){
+				String type = string(buffer.getInt(pos));
+				int count = buffer.getInt(pos + 4);
+				pos += 8;
+				List<ClassMirror<?>> list = new ArrayList<>(count);
+				for(int j = 0; j < count; j++){
+					list.add(classes.get(buffer.getInt(pos)));
+					pos += 4;
+				}
+				map.put(type, Collections.unmodifiableList(list));
+			}
+			annotated = map;
+		}
+		List<ClassMirror<?>> list = annotated.get(jvmName);
+		if(list == null){
+			return Collections.emptyList();
+		}
+		return list;
+	}
+
+	/**
+	 * Returns the string at the given index in the string table, decoding
+	 * it the first time it's asked for.
+	 */
+	private String string(int index){
+		if(index == -1){
+			return null;
+		}
+		String s = strings[index];
+		if(s == null){
+			int pos = stringStart + buffer.getInt(HEADER_SIZE + 4 * index);
+			byte[] bytes = new byte[buffer.getInt(pos)];
+			ByteBuffer b = buffer.duplicate();
+			b.position(pos + 4);
+			b.get(bytes);
+			s = new String(bytes, UTF8);
+			strings[index] = s;
+		}
+		return s;
+	}
+
+	/**
+	 * Reads the class record at the given offset into the class info.
+	 */
+	/* package */ void read(int record, ClassMirror.ClassInfo info){
+		Reader r = new Reader(record + 4);
+		int access = r.readInt();
+		info.modifiers = new ModifierMirror(ModifierMirror.Type.CLASS, access);
+		info.isEnum = (access & Opcodes.ACC_ENUM) > 0;
+		info.isInterface = (access & Opcodes.ACC_INTERFACE) > 0;
+		info.classReferenceMirror = new ClassReferenceMirror("L" + info.name + ";");
+		info.superClass = r.readString();
+		String[] interfaces = new String[r.readInt()];
+		for(int i = 0; i < interfaces.length; i++){
+			interfaces[i] = r.readString();
+		}
+		info.interfaces = interfaces;
+		info.annotations = r.readAnnotations();
+		int fields = r.readInt();
+		for(int i = 0; i < fields; i++){
+			String name = r.readString();
+			ModifierMirror modifiers = new ModifierMirror(ModifierMirror.Type.FIELD, r.readInt());
+			ClassReferenceMirror type = new ClassReferenceMirror(r.readString());
+			Object value = r.readValue();
+			info.fields.add(new FieldMirror(info.classReferenceMirror, r.readAnnotations(), modifiers, type, name, value));
+		}
+		int methods = r.readInt();
+		for(int i = 0; i < methods; i++){
+			String name = r.readString();
+			ModifierMirror modifiers = new ModifierMirror(ModifierMirror.Type.METHOD, r.readInt());
+			ClassReferenceMirror type = new ClassReferenceMirror(r.readString());
+			List<ClassReferenceMirror> params = new ArrayList<>();
+			int paramCount = r.readInt();
+			for(int j = 0; j < paramCount; j++){
+				params.add(new ClassReferenceMirror(r.readString()));
+			}
+			byte flags = r.readByte();
+			info.methods.add(new MethodMirror(info.classReferenceMirror, r.readAnnotations(), modifiers, type, name, params,
+					(flags & VARARG) != 0, (flags & SYNTHETIC) != 0));
+		}
+	}
+
+	/**
+	 * Reads from the buffer at a moving position, without touching the
+	 * buffer's own position, so several mirrors may load at once.
+	 */
+	private class Reader {
+		private int pos;
+
+		Reader(int pos){
+			this.pos = pos;
+		}
+
+		int readInt(){
+			int i = buffer.getInt(pos);
+			pos += 4;
+			return i;
+		}
+
+		byte readByte(){
+			return buffer.get(pos++);
+		}
+
+		String readString(){
+			return string(readInt());
+		}
+
+		List<AnnotationMirror> readAnnotations(){
+			int count = readInt();
+			List<AnnotationMirror> list = new ArrayList<>(count);
+			for(int i = 0; i < count; i++){
+				AnnotationMirror am = new AnnotationMirror(new ClassReferenceMirror(readString()), readByte() != 0);
+				int values = readInt();
+				for(int j = 0; j < values; j++){
+					String name = readString();
+					am.addAnnotationValue(name, readValue());
+				}
+				list.add(am);
+			}
+			return list;
+		}
+
+		Object readValue(){
+			byte tag = readByte();
+			switch(tag){
+				case NULL:
+					return null;
+				case STRING:
+					return readString();
+				case INT:
+					return readInt();
+				case LONG:
+					long l = buffer.getLong(pos);
+					pos += 8;
+					return l;
+				case FLOAT:
+					return Float.intBitsToFloat(readInt());
+				case DOUBLE:
+					double d = buffer.getDouble(pos);
+					pos += 8;
+					return d;
+				case BOOLEAN:
+					return readByte() != 0;
+				case BYTE:
+					return readByte();
+				case CHAR:
+					return (char) readInt();
+				case SHORT:
+					return (short) readInt();
+				case CLASS:
+					return new ClassReferenceMirror(readString());
+				case SERIALIZED:
+					byte[] bytes = new byte[readInt()];
+					ByteBuffer b = buffer.duplicate();
+					b.position(pos);
+					b.get(bytes);
+					pos += bytes.length;
+					try (ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+						return ois.readObject();
+					} catch (IOException | ClassNotFoundException ex) {
+						throw new RuntimeException("Could not read annotation value from class descriptor", ex);
+					}
+				default:
+					throw new RuntimeException("Corrupt class descriptor, unknown value type " + tag);
+			}
+		}
+	}
+
+	/**
+	 * Writes the given mirrors out as a descriptor. The mirrors must have
+	 * been read from class files (or another descriptor), not created from
+	 * already loaded classes.
+	 * @param mirrors
+	 * @param out
+	 * @throws IOException
+	 */
+	public static void write(Collection<? extends ClassMirror<?>> mirrors, OutputStream out) throws IOException {
+		new Writer().write(mirrors, out);
+	}
+
+	private static class Writer {
+		private final Map<String, Integer> strings = new LinkedHashMap<>();
+		private final Map<String, List<Integer>> annotated = new LinkedHashMap<>();
+
+		void write(Collection<? extends ClassMirror<?>> mirrors, OutputStream out) throws IOException {
+			ByteArrayOutputStream classBytes = new ByteArrayOutputStream();
+			DataOutputStream classData = new DataOutputStream(classBytes);
+			int[] classOffsets = new int[mirrors.size()];
+			int index = 0;
+			for(ClassMirror<?> m : mirrors){
+				classOffsets[index] = classData.size();
+				writeClass(index, m.getInfo(), classData);
+				index++;
+			}
+			classData.flush();
+
+			ByteArrayOutputStream annotationBytes = new ByteArrayOutputStream();
+			DataOutputStream annotationData = new DataOutputStream(annotationBytes);
+			for(Map.Entry<String, List<Integer>> e : annotated.entrySet()){
+				annotationData.writeInt(string(e.getKey()));
+				annotationData.writeInt(e.getValue().size());
+				for(int i : e.getValue()){
+					annotationData.writeInt(i);
+				}
+			}
+			annotationData.flush();
+
+			ByteArrayOutputStream stringBytes = new ByteArrayOutputStream();
+			DataOutputStream stringData = new DataOutputStream(stringBytes);
+			int[] stringOffsets = new int[strings.size()];
+			index = 0;
+			for(String s : strings.keySet()){
+				stringOffsets[index++] = stringData.size();
+				byte[] bytes = s.getBytes(UTF8);
+				stringData.writeInt(bytes.length);
+				stringData.write(bytes);
+			}
+			stringData.flush();
+
+			int stringStart = HEADER_SIZE + 4 * (stringOffsets.length + classOffsets.length);
+			int classStart = stringStart + stringBytes.size();
+			int annotationStart = classStart + classBytes.size();
+
+			DataOutputStream dos = new DataOutputStream(out);
+			dos.writeInt(MAGIC);
+			dos.writeInt(VERSION);
+			dos.writeInt(stringOffsets.length);
+			dos.writeInt(classOffsets.length);
+			dos.writeInt(annotated.size());
+			dos.writeInt(stringStart);
+			dos.writeInt(classStart);
+			dos.writeInt(annotationStart);
+			for(int offset : stringOffsets){
+				dos.writeInt(offset);
+			}
+			for(int offset : classOffsets){
+				dos.writeInt(offset);
+			}
+			stringBytes.writeTo(dos);
+			classBytes.writeTo(dos);
+			annotationBytes.writeTo(dos);
+			dos.flush();
+		}
+
+		private int string(String s){
+			if(s == null){
+				return -1;
+			}
+			Integer i = strings.get(s);
+			if(i == null){
+				i = strings.size();
+				strings.put(s, i);
+			}
+			return i;
+		}
+
+		private void writeClass(int index, ClassMirror.ClassInfo info, DataOutputStream out) throws IOException {
+			if(info.name == null){
+				throw new IOException("Mirrors of already loaded classes cannot be written to a descriptor");
+			}
+			out.writeInt(string(info.name));
+			out.writeInt(info.modifiers.getAccess());
+			out.writeInt(string(info.superClass));
+			String[] interfaces = info.interfaces == null ? new String[0] : info.interfaces;
+			out.writeInt(interfaces.length);
+			for(String i : interfaces){
+				out.writeInt(string(i));
+			}
+			writeAnnotations(info.annotations, out);
+			for(AnnotationMirror a : info.annotations){
+				String type = a.getType().getJVMName();
+				List<Integer> list = annotated.get(type);
+				if(list == null){
+					list = new ArrayList<>();
+					annotated.put(type, list);
+				}
+				if(list.isEmpty() || list.get(list.size() - 1) != index){
+					list.add(index);
+				}
+			}
+			out.writeInt(info.fields.size());
+			for(FieldMirror f : info.fields){
+				out.writeInt(string(f.getName()));
+				out.writeInt(f.getModifiers().getAccess());
+				out.writeInt(string(f.getType().getJVMName()));
+				writeValue(f.getValue(), out);
+				writeAnnotations(f.getAnnotations(), out);
+			}
+			out.writeInt(info.methods.size());
+			for(MethodMirror m : info.methods){
+				out.writeInt(string(m.getName()));
+				out.writeInt(m.getModifiers().getAccess());
+				out.writeInt(string(m.getType().getJVMName()));
+				List<ClassReferenceMirror> params = m.getParams();
+				out.writeInt(params.size());
+				for(ClassReferenceMirror p : params){
+					out.writeInt(string(p.getJVMName()));
+				}
+				out.writeByte((m.isVararg() ? VARARG : 0) | (m.isSynthetic() ? SYNTHETIC : 0));
+				writeAnnotations(m.getAnnotations(), out);
+			}
+		}
+
+		private void writeAnnotations(List<AnnotationMirror> annotations, DataOutputStream out) throws IOException {
+			out.writeInt(annotations.size());
+			for(AnnotationMirror a : annotations){
+				out.writeInt(string(a.getType().getJVMName()));
+				out.writeByte(a.isVisible() ? 1 : 0);
+				List<String> names = a.getDefinedValues();
+				out.writeInt(names.size());
+				for(String name : names){
+					out.writeInt(string(name));
+					writeValue(a.getValue(name), out);
+				}
+			}
+		}
+
+		private void writeValue(Object value, DataOutputStream out) throws IOException {
+			if(value == null){
+				out.writeByte(NULL);
+			} else if(value instanceof String){
+				out.writeByte(STRING);
+				out.writeInt(string((String) value));
+			} else if(value instanceof Integer){
+				out.writeByte(INT);
+				out.writeInt((Integer) value);
+			} else if(value instanceof Long){
+				out.writeByte(LONG);
+				out.writeLong((Long) value);
+			} else if(value instanceof Float){
+				out.writeByte(FLOAT);
+				out.writeInt(Float.floatToRawIntBits((Float) value));
+			} else if(value instanceof Double){
+				out.writeByte(DOUBLE);
+				out.writeDouble((Double) value);
+			} else if(value instanceof Boolean){
+				out.writeByte(BOOLEAN);
+				out.writeByte((Boolean) value ? 1 : 0);
+			} else if(value instanceof Byte){
+				out.writeByte(BYTE);
+				out.writeByte((Byte) value);
+			} else if(value instanceof Character){
+				out.writeByte(CHAR);
+				out.writeInt((Character) value);
+			} else if(value instanceof Short){
+				out.writeByte(SHORT);
+				out.writeInt((Short) value);
+			} else if(value instanceof ClassReferenceMirror){
+				out.writeByte(CLASS);
+				out.writeInt(string(((ClassReferenceMirror) value).getJVMName()));
+			} else if(value instanceof Serializable){
+				ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+				try (ObjectOutputStream oos = new ObjectOutputStream(bytes)) {
+					oos.writeObject(value);
+				}
+				out.writeByte(SERIALIZED);
+				out.writeInt(bytes.size());
+				bytes.writeTo(out);
+			} else {
+				throw new IOException("Cannot write value of type " + value.getClass().getName() + " to a class descriptor");
+			}
+		}
+	}
+}
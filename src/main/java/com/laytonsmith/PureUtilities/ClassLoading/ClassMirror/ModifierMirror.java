@@ -232,6 +232,15 @@ public class ModifierMirror implements Serializable {
 		return modifiers;
 	}
 
+	/**
+	 * Returns the access flags as stored in the class file, or 0 if this
+	 * mirrors an already loaded class.
+	 * @return
+	 */
+	/* package */ int getAccess() {
+		return access;
+	}
+
 	@Override
 	public String toString() {
 		List<String> build = new ArrayList<String>();
@@ -0,0 +1,180 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Jason Unger <entityreborn@gmail.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.entityreborn.socpuppet.users;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Compares RegisteredUser's trie backed permission checks with the flat set
+ * lookup they replaced, for users with few and with many grants. Not run as
+ * part of the tests; run its main method from the test classpath.
+ *
+ * @author Jason Unger <entityreborn@gmail.com>
+ */
+public class PermissionTrieBenchmark {
+    private static final String[] QUERIES = {
+        "core.user.perms.add",
+        "core.user.masks.add",
+        "plugin.games.dice.roll",
+        "plugin.games.trivia.start",
+        "plugin.admin.kick",
+        "unassigned.node.somewhere.deep",
+        "core.help"
+    };
+
+    /**
+     * The flat set lookup RegisteredUser.hasPerm used before the trie.
+     */
+    private static Boolean oldHasPerm(Set<String> perms, String perm, Boolean def) {
+        perm = perm.toLowerCase();
+
+        if (perms.contains("*")) {
+            return true;
+        }
+
+        if (perms.contains(perm)) {
+            return true;
+        }
+
+        if (perms.contains("-" + perm)) {
+            return true;
+        }
+
+        int index = perm.lastIndexOf(".");
+
+        while (index != -1) {
+            perm = perm.substring(0, index);
+
+            if (perms.contains(perm + ".*")) {
+                return true;
+            }
+
+            if (perms.contains("-" + perm + ".*")) {
+                return false;
+            }
+
+            index = perm.lastIndexOf(".");
+        }
+
+        return def;
+    }
+
+    private static Set<String> grants(int extra) {
+        Set<String> perms = new HashSet<>();
+        perms.add("core.user.*");
+        perms.add("-core.user.perms.*");
+        perms.add("plugin.games.*");
+        perms.add("-plugin.games.trivia.start");
+
+        for (int i = 0; i < extra; i++) {
+            perms.add("plugin.extra" + i + ".node.*");
+        }
+
+        return perms;
+    }
+
+    private static int runOld(Set<String> perms, int rounds) {
+        int allowed = 0;
+
+        for (int i = 0; i < rounds; i++) {
+            for (String q : QUERIES) {
+                if (oldHasPerm(perms, q, false)) {
+                    allowed++;
+                }
+            }
+        }
+
+        return allowed;
+    }
+
+    private static int runNew(RegisteredUser user, int rounds) {
+        int allowed = 0;
+
+        for (int i = 0; i < rounds; i++) {
+            for (String q : QUERIES) {
+                if (user.hasPerm(q, false)) {
+                    allowed++;
+                }
+            }
+        }
+
+        return allowed;
+    }
+
+    private static int runRelative(RegisteredUser user, int rounds) {
+        int found = 0;
+
+        for (int i = 0; i < rounds; i++) {
+            for (String q : QUERIES) {
+                if (user.getRelativePerm(q) != null) {
+                    found++;
+                }
+            }
+        }
+
+        return found;
+    }
+
+    public static void main(String[] args) {
+        int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+
+        for (int extra : new int[]{0, 100}) {
+            Set<String> perms = grants(extra);
+            RegisteredUser user = new RegisteredUser();
+
+            for (String perm : perms) {
+                user.addPerm(perm);
+            }
+
+            // Warm up, so the JIT has compiled everything before timing.
+            runOld(perms, rounds / 10);
+            runNew(user, rounds / 10);
+            runRelative(user, rounds / 10);
+
+            for (int pass = 0; pass < 3; pass++) {
+                long checks = (long) rounds * QUERIES.length;
+
+                long start = System.nanoTime();
+                int a = runOld(perms, rounds);
+                long oldNanos = System.nanoTime() - start;
+
+                start = System.nanoTime();
+                int b = runNew(user, rounds);
+                long newNanos = System.nanoTime() - start;
+
+                start = System.nanoTime();
+                runRelative(user, rounds);
+                long relNanos = System.nanoTime() - start;
+
+                // The allowed counts differ: the flat set allowed an exact
+                // "-node" denial, hasPerm doesn't.
+                System.out.println(perms.size() + " grants: flat set " + oldNanos / checks
+                        + "ns/check, hasPerm " + newNanos / checks + "ns/check, getRelativePerm "
+                        + relNanos / checks + "ns/check (" + a + "/" + b + " allowed)");
+            }
+        }
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Jason Unger <entityreborn@gmail.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.entityreborn.socpuppet.users;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * @author Jason Unger <entityreborn@gmail.com>
+ */
+public class PermissionTrieTest {
+    private static final String[] NODES = {
+        "a", "a.b", "a.b.c", "a.b.c.d", "a.c", "a.c.d", "b", "b.a", "c.d.e",
+        "A.B.C", "x"
+    };
+
+    private static PermissionTrie trie(String... grants) {
+        return new PermissionTrie(Arrays.asList(grants));
+    }
+
+    private static RegisteredUser user(String... grants) {
+        RegisteredUser user = new RegisteredUser();
+
+        for (String grant : grants) {
+            user.addPerm(grant);
+        }
+
+        return user;
+    }
+
+    /**
+     * The flat set lookup RegisteredUser.getRelativePerm used before the
+     * trie.
+     */
+    private static String oldRelativePerm(Set<String> perms, String perm) {
+        perm = perm.toLowerCase();
+
+        if (perms.contains("*")) {
+            return "*";
+        }
+
+        if (perms.contains(perm)) {
+            return perm;
+        }
+
+        if (perms.contains("-" + perm)) {
+            return "-" + perm;
+        }
+
+        int index = perm.lastIndexOf(".");
+
+        while (index != -1) {
+            perm = perm.substring(0, index);
+
+            if (perms.contains(perm + ".*")) {
+                return perm + ".*";
+            }
+
+            if (perms.contains("-" + perm + ".*")) {
+                return "-" + perm + ".*";
+            }
+
+            index = perm.lastIndexOf(".");
+        }
+
+        return null;
+    }
+
+    private static void assertMatchesOld(String... grants) {
+        Set<String> perms = new HashSet<>(Arrays.asList(grants));
+        PermissionTrie trie = new PermissionTrie(perms);
+
+        for (String node : NODES) {
+            assertEquals(Arrays.toString(grants) + " " + node,
+                    oldRelativePerm(perms, node), trie.resolve(node));
+        }
+    }
+
+    @Test
+    public void globalWildcardAllowsEverything() {
+        PermissionTrie trie = trie("*", "-a.b", "-a.*");
+
+        assertEquals("*", trie.resolve("a.b"));
+        assertEquals("*", trie.resolve("x"));
+        assertTrue(user("*", "-a.b").hasPerm("a.b"));
+    }
+
+    @Test
+    public void globalDenyIsIgnored() {
+        assertNull(trie("-*").resolve("a"));
+        assertTrue(user("-*").hasPerm("a", true));
+    }
+
+    @Test
+    public void exactAllow() {
+        PermissionTrie trie = trie("a.b");
+
+        assertEquals("a.b", trie.resolve("a.b"));
+        assertEquals("a.b", trie.resolve("A.B"));
+        assertNull(trie.resolve("a"));
+        assertNull(trie.resolve("a.b.c"));
+        assertTrue(user("a.b").hasPerm("a.b"));
+        assertFalse(user("a.b").hasPerm("a.b.c"));
+    }
+
+    @Test
+    public void exactDeny() {
+        assertEquals("-a.b", trie("-a.b").resolve("a.b"));
+        assertFalse(user("-a.b").hasPerm("a.b", true));
+    }
+
+    @Test
+    public void allowWinsOverDenyAtSameLevel() {
+        assertEquals("a.b", trie("a.b", "-a.b").resolve("a.b"));
+        assertEquals("a.*", trie("a.*", "-a.*").resolve("a.b"));
+    }
+
+    @Test
+    public void wildcardDoesNotCoverItsParent() {
+        assertNull(trie("a.*").resolve("a"));
+        assertEquals("a.*", trie("a.*").resolve("a.b"));
+        assertEquals("a.*", trie("a.*").resolve("a.b.c"));
+    }
+
+    @Test
+    public void nearestWildcardWins() {
+        PermissionTrie trie = trie("a.*", "-a.b.*");
+
+        assertEquals("-a.b.*", trie.resolve("a.b.c"));
+        assertEquals("-a.b.*", trie.resolve("a.b.c.d"));
+        assertEquals("a.*", trie.resolve("a.c.d"));
+        assertFalse(user("a.*", "-a.b.*").hasPerm("a.b.c"));
+        assertTrue(user("a.*", "-a.b.*").hasPerm("a.c.d"));
+    }
+
+    @Test
+    public void exactDenyOverridesWildcard() {
+        PermissionTrie trie = trie("a.*", "-a.b.c");
+
+        assertEquals("-a.b.c", trie.resolve("a.b.c"));
+        assertEquals("a.*", trie.resolve("a.b.c.d"));
+        assertFalse(user("a.*", "-a.b.c").hasPerm("a.b.c"));
+        assertTrue(user("a.*", "-a.b.c").hasPerm("a.b"));
+    }
+
+    @Test
+    public void unassignedFallsBackToDefault() {
+        assertTrue(user("a.b").hasPerm("x", true));
+        assertFalse(user("a.b").hasPerm("x", false));
+        assertNull(user("a.b").hasPerm("x", null));
+    }
+
+    @Test
+    public void resolvesLikeOldLookup() {
+        assertMatchesOld();
+        assertMatchesOld("*");
+        assertMatchesOld("a.b");
+        assertMatchesOld("-a.b");
+        assertMatchesOld("a.b", "-a.b");
+        assertMatchesOld("a.*");
+        assertMatchesOld("-a.*");
+        assertMatchesOld("a.*", "-a.b.*");
+        assertMatchesOld("-a.*", "a.b.*");
+        assertMatchesOld("a.*", "-a.b.c");
+        assertMatchesOld("a.*", "-a.*", "a.b.c", "-c.d.*");
+        assertMatchesOld("*", "-a.b", "-a.*");
+        assertMatchesOld("a.b.*", "a.b.c.*", "-a.b.c.d", "b.*", "-b.a");
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Jason Unger <entityreborn@gmail.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.entityreborn.socpuppet.util;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Compares CommandScanner with the regex it replaced, over a mix of chat
+ * lines that are mostly not commands. Not run as part of the tests; run
+ * its main method from the test classpath.
+ *
+ * @author Jason Unger <entityreborn@gmail.com>
+ */
+public class CommandScannerBenchmark {
+    private static final Pattern REGEX = Pattern.compile("^\\^([^\\ ]+)(\\s+?(.*))?",
+            Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE | Pattern.MULTILINE | Pattern.COMMENTS);
+
+    private static final String[] LINES = {
+        "hello everyone, how is it going today?",
+        "^help",
+        "lol",
+        "has anyone seen the new release notes? they look good",
+        "^say hello world",
+        "brb",
+        "^perms add someone some.node.*",
+        "ok thanks"
+    };
+
+    private static int regex(int rounds) {
+        int found = 0;
+
+        for (int i = 0; i < rounds; i++) {
+            for (String line : LINES) {
+                Matcher m = REGEX.matcher(line);
+
+                if (m.matches() && m.group(1) != null) {
+                    found++;
+                }
+            }
+        }
+
+        return found;
+    }
+
+    private static int scanner(CommandScanner scanner, int rounds) {
+        int found = 0;
+
+        for (int i = 0; i < rounds; i++) {
+            for (String line : LINES) {
+                if (scanner.scan(line) != null) {
+                    found++;
+                }
+            }
+        }
+
+        return found;
+    }
+
+    public static void main(String[] args) {
+        int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        CommandScanner scanner = new CommandScanner(CommandScanner.DEFAULT_PREFIX);
+
+        // Warm up both, so the JIT has compiled them before timing.
+        regex(rounds / 10);
+        scanner(scanner, rounds / 10);
+
+        for (int pass = 0; pass < 3; pass++) {
+            long start = System.nanoTime();
+            int a = regex(rounds);
+            long regexNanos = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            int b = scanner(scanner, rounds);
+            long scanNanos = System.nanoTime() - start;
+
+            long lines = (long) rounds * LINES.length;
+            System.out.println("regex: " + regexNanos / lines + "ns/line, scanner: "
+                    + scanNanos / lines + "ns/line (" + a + "/" + b + " commands)");
+        }
+    }
+}
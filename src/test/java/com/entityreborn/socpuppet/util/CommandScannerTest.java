@@ -0,0 +1,89 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Jason Unger <entityreborn@gmail.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.entityreborn.socpuppet.util;
+
+import com.entityreborn.socpuppet.util.CommandScanner.Command;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * @author Jason Unger <entityreborn@gmail.com>
+ */
+public class CommandScannerTest {
+    private final CommandScanner scanner = new CommandScanner(CommandScanner.DEFAULT_PREFIX);
+
+    @Test
+    public void triggerOnly() {
+        Command cmd = scanner.scan("^help");
+
+        assertEquals("help", cmd.getTrigger());
+        assertEquals("", cmd.getArgs());
+    }
+
+    @Test
+    public void triggerAndArgs() {
+        Command cmd = scanner.scan("^say hello  world");
+
+        assertEquals("say", cmd.getTrigger());
+        assertEquals("hello  world", cmd.getArgs());
+    }
+
+    @Test
+    public void splitsOnAnyWhitespace() {
+        Command cmd = scanner.scan("^say\thello");
+
+        assertEquals("say", cmd.getTrigger());
+        assertEquals("hello", cmd.getArgs());
+        assertFalse(scanner.isCommand("^\tsay"));
+    }
+
+    @Test
+    public void rejectsNonCommands() {
+        assertNull(scanner.scan(null));
+        assertNull(scanner.scan(""));
+        assertNull(scanner.scan("^"));
+        assertNull(scanner.scan("^ help"));
+        assertNull(scanner.scan("help"));
+        assertNull(scanner.scan("^say a\nb"));
+    }
+
+    @Test
+    public void longerPrefix() {
+        CommandScanner bang = new CommandScanner("!!");
+
+        assertTrue(bang.isCommand("!!help"));
+        assertFalse(bang.isCommand("!help"));
+        assertEquals("help", bang.scan("!!help me").getTrigger());
+    }
+
+    @Test
+    public void emptyPrefixUsesDefault() {
+        assertEquals(CommandScanner.DEFAULT_PREFIX, new CommandScanner("").getPrefix());
+        assertEquals(CommandScanner.DEFAULT_PREFIX, new CommandScanner(null).getPrefix());
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Jason Unger <entityreborn@gmail.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.entityreborn.socpuppet.util;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Compares StringSetType's encode and decode with the concatenating encoder
+ * and regex split they replaced, for sets of 10 to 10,000 entries. Not run
+ * as part of the tests; run its main method from the test classpath.
+ *
+ * @author Jason Unger <entityreborn@gmail.com>
+ */
+public class StringSetTypeBenchmark {
+    private static final int[] SIZES = {10, 100, 1000, 10000};
+
+    private static String oldEncode(Set<String> set) {
+        String retn = "";
+
+        for (String item : set) {
+            if (!retn.isEmpty()) {
+                retn += StringSetType.TOKEN;
+            }
+
+            retn += item;
+        }
+
+        return retn;
+    }
+
+    private static Set<String> oldDecode(String str) {
+        HashSet<String> retn = new HashSet<>();
+        retn.addAll(Arrays.asList(str.split(StringSetType.TOKEN)));
+
+        return retn;
+    }
+
+    private static Set<String> items(int size) {
+        Set<String> set = new HashSet<>();
+
+        for (int i = 0; i < size; i++) {
+            set.add("some.permission.node" + i + ".*");
+        }
+
+        return set;
+    }
+
+    /**
+     * @return average nanoseconds per call of the given operation.
+     */
+    private static long time(Runnable op, int rounds) {
+        for (int i = 0; i < Math.max(1, rounds / 10); i++) {
+            op.run();
+        }
+
+        long start = System.nanoTime();
+
+        for (int i = 0; i < rounds; i++) {
+            op.run();
+        }
+
+        return (System.nanoTime() - start) / rounds;
+    }
+
+    public static void main(String[] args) {
+        long budget = args.length > 0 ? Long.parseLong(args[0]) : 2000000;
+
+        for (int size : SIZES) {
+            final Set<String> set = items(size);
+            final String encoded = StringSetType.encode(set);
+            // The old encoder is quadratic, so give it fewer rounds.
+            int rounds = (int) Math.max(1, budget / size);
+            int oldRounds = (int) Math.max(1, budget / ((long) size * size / 10 + size));
+
+            long oldEnc = time(new Runnable() {
+                @Override
+                public void run() {
+                    oldEncode(set);
+                }
+            }, oldRounds);
+            long newEnc = time(new Runnable() {
+                @Override
+                public void run() {
+                    StringSetType.encode(set);
+                }
+            }, rounds);
+            long oldDec = time(new Runnable() {
+                @Override
+                public void run() {
+                    oldDecode(encoded);
+                }
+            }, rounds);
+            long newDec = time(new Runnable() {
+                @Override
+                public void run() {
+                    StringSetType.decode(encoded);
+                }
+            }, rounds);
+
+            System.out.println(size + " entries: encode " + oldEnc + "ns -> "
+                    + newEnc + "ns, decode " + oldDec + "ns -> " + newDec + "ns");
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package com.laytonsmith.PureUtilities.ClassLoading;
+
+import java.io.File;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Times a full scan of the given class directories and jars, first on the
+ * calling thread and then in parallel. Not run as part of the tests; run its
+ * main method from the test classpath, passing the locations to scan. With
+ * no arguments, scans the location this class was loaded from.
+ */
+public class ClassDiscoveryBenchmark {
+
+	private static long scan(List<URL> urls, int parallelism) {
+		ClassDiscovery cd = new ClassDiscovery();
+		cd.setParallelism(parallelism);
+		for (URL url : urls) {
+			cd.addDiscoveryLocation(url);
+		}
+		long start = System.nanoTime();
+		int count = cd.getKnownClasses().size();
+		long millis = (System.nanoTime() - start) / 1000000;
+		System.out.println("parallelism " + parallelism + ": " + count + " classes in " + millis + " ms");
+		return millis;
+	}
+
+	public static void main(String[] args) throws Exception {
+		List<URL> urls = new ArrayList<>();
+		for (String arg : args) {
+			urls.add(new File(arg).toURI().toURL());
+		}
+		if (urls.isEmpty()) {
+			urls.add(ClassDiscovery.GetClassContainer(ClassDiscoveryBenchmark.class));
+		}
+		int cores = Runtime.getRuntime().availableProcessors();
+		//The first pass warms up the JIT and the file system cache.
+		scan(urls, cores);
+		for (int pass = 0; pass < 3; pass++) {
+			scan(urls, 1);
+			scan(urls, cores);
+		}
+	}
+}